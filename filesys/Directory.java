@@ -0,0 +1,183 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.BitSet;
+
+/**
+ * The directory of a <tt>DiskFileSystem</tt>, which maps names to inode
+ * numbers. It is a hash table with linear probing, stored as is on disk:
+ * the entry for a name is in the first slot, starting at the slot its hash
+ * code selects, that holds the name or has never been used. So finding,
+ * adding, or removing a name looks at a few slots, and changes one.
+ *
+ * <p>
+ * On disk, a slot takes <tt>entrySize</tt> bytes: the inode number plus one
+ * (zero for a slot that has never been used, and -1 for a slot whose name
+ * was removed), followed by the name.
+ */
+class Directory {
+    /**
+     * Load a directory from the file system's metadata.
+     *
+     * @param	fileSystem	the file system.
+     * @param	offset		the offset of the directory in the metadata.
+     * @param	numSlots	the number of slots in the directory.
+     */
+    Directory(DiskFileSystem fileSystem, int offset, int numSlots) {
+	this.fileSystem = fileSystem;
+	this.offset = offset;
+	this.numSlots = numSlots;
+
+	names = new String[numSlots];
+	inodes = new int[numSlots];
+
+	byte[] metadata = fileSystem.metadata;
+	for (int i=0; i<numSlots; i++) {
+	    int slotOffset = offset + i*entrySize;
+
+	    inodes[i] = Lib.bytesToInt(metadata, slotOffset) - 1;
+	    if (inodes[i] >= 0) {
+		names[i] = Lib.bytesToString(metadata, slotOffset+4,
+					     maxNameLength);
+	    }
+	}
+    }
+
+    /**
+     * Find the inode number of a file.
+     *
+     * @param	name	the name of the file.
+     * @return	the inode number, or -1 if there is no such file.
+     */
+    int find(String name) {
+	int slot = findSlot(name);
+	return (slot == -1) ? -1 : inodes[slot];
+    }
+
+    /**
+     * Add a file to this directory.
+     *
+     * @param	name	the name of the file, which is not in the directory.
+     * @param	inode	the inode number of the file.
+     * @return	<tt>true</tt> if the file was added, or <tt>false</tt> if the
+     *		directory is full.
+     */
+    boolean add(String name, int inode) {
+	int slot = hash(name);
+
+	// use the first slot that is not in use
+	for (int i=0; i<numSlots; i++) {
+	    if (inodes[slot] < 0) {
+		set(slot, name, inode);
+		return true;
+	    }
+
+	    slot = (slot+1) % numSlots;
+	}
+
+	return false;
+    }
+
+    /**
+     * Remove a file from this directory.
+     *
+     * @param	name	the name of the file.
+     * @return	the inode number of the file, or -1 if there is no such file.
+     */
+    int remove(String name) {
+	int slot = findSlot(name);
+	if (slot == -1)
+	    return -1;
+
+	int inode = inodes[slot];
+
+	// if no search continues past this slot, no search needs to get
+	// past the removed slots before it either
+	int next = (slot+1) % numSlots;
+	if (inodes[next] == empty) {
+	    do {
+		set(slot, null, empty);
+		slot = (slot-1+numSlots) % numSlots;
+	    } while (inodes[slot] == removed);
+	}
+	else {
+	    set(slot, null, removed);
+	}
+
+	return inode;
+    }
+
+    /**
+     * Return the inode numbers of the files in this directory.
+     *
+     * @return	the set of inode numbers.
+     */
+    BitSet getInodes() {
+	BitSet set = new BitSet();
+	for (int i=0; i<numSlots; i++) {
+	    if (inodes[i] >= 0)
+		set.set(inodes[i]);
+	}
+
+	return set;
+    }
+
+    private int findSlot(String name) {
+	int slot = hash(name);
+
+	for (int i=0; i<numSlots; i++) {
+	    if (inodes[slot] == empty)
+		break;
+	    if (inodes[slot] >= 0 && names[slot].equals(name))
+		return slot;
+
+	    slot = (slot+1) % numSlots;
+	}
+
+	return -1;
+    }
+
+    private int hash(String name) {
+	return (name.hashCode() & 0x7FFFFFFF) % numSlots;
+    }
+
+    /**
+     * Change a slot, and copy it to the file system's metadata.
+     */
+    private void set(int slot, String name, int inode) {
+	names[slot] = name;
+	inodes[slot] = inode;
+
+	byte[] metadata = fileSystem.metadata;
+	int slotOffset = offset + slot*entrySize;
+
+	java.util.Arrays.fill(metadata, slotOffset, slotOffset+entrySize,
+			      (byte) 0);
+	Lib.bytesFromInt(metadata, slotOffset, inode+1);
+	if (name != null) {
+	    byte[] bytes = name.getBytes();
+	    System.arraycopy(bytes, 0, metadata, slotOffset+4, bytes.length);
+	}
+
+	fileSystem.markDirty(slotOffset, entrySize);
+    }
+
+    /** The number of bytes a slot takes on disk. */
+    static final int entrySize = 32;
+    /** The longest file name. */
+    static final int maxNameLength = entrySize-4;
+
+    /** The inode number of a slot that has never been used. */
+    private static final int empty = -1;
+    /** The inode number of a slot whose name was removed. */
+    private static final int removed = -2;
+
+    private DiskFileSystem fileSystem;
+    private int offset, numSlots;
+
+    /** The name in each slot. */
+    private String[] names;
+    /** The inode number in each slot, or <tt>empty</tt> or <tt>removed</tt>. */
+    private int[] inodes;
+}
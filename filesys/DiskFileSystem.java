@@ -0,0 +1,755 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * A file system on the machine's simulated disk, so that file access is
+ * timed by the disk rather than by the host's file system.
+ *
+ * <p>
+ * The disk starts with the file system's metadata: a superblock, the bitmap
+ * of free sectors, the inode table, and the directory. The metadata is small,
+ * so it is read once when the file system is mounted and kept in memory.
+ * After it comes the journal, and the rest of the disk holds the files'
+ * data, in the extents listed by their inodes (see <tt>Inode</tt>). The
+ * directory is a hash table (see <tt>Directory</tt>), so opening or removing
+ * a file takes the same time however many files there are.
+ *
+ * <p>
+ * Changes to the metadata are written ahead to the journal before the
+ * operation making them returns. The changes of every thread that finishes
+ * an operation while the journal is being written are committed together,
+ * in the next journal write, so that many small operations cost one
+ * sequential transfer. The metadata sectors are only written to their homes
+ * when the journal fills up, by which time most of them have changed many
+ * times. When the file system is mounted, the journal is read in one
+ * transfer and the changes it holds are replayed, so recovering from a crash
+ * takes time proportional to the journal, not to the disk.
+ *
+ * <p>
+ * To use it, set <tt>Machine.disk</tt> and set
+ * <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.DiskFileSystem</tt>. A disk that does not hold a file
+ * system, or any disk if <tt>DiskFileSystem.format</tt> is set, is formatted
+ * with room for <tt>DiskFileSystem.numInodes</tt> files and a journal of
+ * <tt>DiskFileSystem.journalSectors</tt> sectors. The files named in
+ * <tt>DiskFileSystem.importFiles</tt>, separated by commas, are copied from
+ * the stub file system if the disk does not have them yet, so that the disk
+ * can hold the programs to run.
+ *
+ * <p>
+ * Files can be read and written by several threads at once, as long as they
+ * are different files. A file removed while it is open can still be used
+ * until it is closed.
+ */
+public class DiskFileSystem implements FileSystem {
+    /**
+     * Mount the file system on the kernel's disk, configured as described
+     * above.
+     */
+    public DiskFileSystem() {
+	this(ThreadedKernel.disk);
+    }
+
+    /**
+     * Mount the file system on a disk, formatting it if necessary.
+     *
+     * @param	disk	the disk holding the file system.
+     */
+    public DiskFileSystem(SynchDisk disk) {
+	Lib.assertTrue(disk != null, "no disk for the file system");
+
+	this.disk = disk;
+	numSectors = disk.getNumSectors();
+
+	byte[] superblock = new byte[sectorSize];
+	disk.readSectors(0, 1, superblock, 0);
+
+	boolean format = Config.getBoolean("DiskFileSystem.format", false) ||
+	    Lib.bytesToInt(superblock, 0) != magic ||
+	    Lib.bytesToInt(superblock, 4) != numSectors;
+
+	if (format) {
+	    numInodes = Config.getInteger("DiskFileSystem.numInodes", 64);
+	    journalSectors =
+		Config.getInteger("DiskFileSystem.journalSectors", 64);
+	}
+	else {
+	    numInodes = Lib.bytesToInt(superblock, 8);
+	    journalSectors = Lib.bytesToInt(superblock, 12);
+	    journalSeq = Lib.bytesToInt(superblock, 16);
+	}
+
+	// lay out the metadata
+	int bitmapSectors = Lib.divRoundUp(numSectors, sectorSize*8);
+	inodeStart = 1 + bitmapSectors;
+	int inodeSectors = Lib.divRoundUp(numInodes*Inode.size, sectorSize);
+	directoryStart = inodeStart + inodeSectors;
+	int directorySlots = 2*numInodes;
+	int directorySectors =
+	    Lib.divRoundUp(directorySlots*Directory.entrySize, sectorSize);
+	journalStart = directoryStart + directorySectors;
+	dataStart = journalStart + journalSectors;
+
+	Lib.assertTrue(numInodes > 0 && dataStart < numSectors,
+		       "disk too small for the file system");
+
+	// one commit can change every metadata sector but the superblock
+	int maxCommit = journalStart-1 +
+	    Lib.divRoundUp(journalStart-1, maxRecordSectors);
+	Lib.assertTrue(journalSectors >= maxCommit,
+		       "journal too small for the metadata");
+
+	metadata = new byte[journalStart*sectorSize];
+
+	if (!format) {
+	    Lib.debug(dbgFileSys, "mounting " + numSectors + " sectors");
+
+	    replayJournal(superblock);
+	    disk.readSectors(0, journalStart, metadata, 0);
+	}
+
+	freeMap = new FreeMap(this, sectorSize, numSectors);
+
+	directory = new Directory(this, directoryStart*sectorSize,
+				  directorySlots);
+
+	if (format)
+	    format();
+
+	recoverInodes();
+
+	String importFiles = Config.getString("DiskFileSystem.importFiles");
+	if (importFiles != null)
+	    importFiles(new StringTokenizer(importFiles, ","));
+    }
+
+    /**
+     * Write an empty file system to the disk, and an empty journal.
+     */
+    private void format() {
+	Lib.debug(dbgFileSys, "formatting " + numSectors + " sectors");
+
+	Lib.bytesFromInt(metadata, 0, magic);
+	Lib.bytesFromInt(metadata, 4, numSectors);
+	Lib.bytesFromInt(metadata, 8, numInodes);
+	Lib.bytesFromInt(metadata, 12, journalSectors);
+	Lib.bytesFromInt(metadata, 16, journalSeq);
+
+	// the metadata is written as is, not through the journal
+	freeMap.markUsed(0, dataStart);
+	dirty.clear();
+
+	// records left from an earlier file system must not be replayed
+	disk.writeSectors(journalStart, journalSectors,
+			  new byte[journalSectors*sectorSize], 0);
+	disk.writeSectors(0, journalStart, metadata, 0);
+    }
+
+    /**
+     * Find the inodes in use, and free the ones that a crash left behind: the
+     * inodes of files removed while open, and the sectors allocated ahead of
+     * need. This only looks at the metadata in memory.
+     */
+    private void recoverInodes() {
+	BitSet named = directory.getInodes();
+
+	for (int i=0; i<numInodes; i++) {
+	    if (Lib.bytesToInt(metadata, inodeOffset(i)) == 0)
+		continue;
+
+	    Inode inode = new Inode(this, i);
+	    if (named.get(i)) {
+		usedInodes.set(i);
+		inode.truncate(Lib.divRoundUp(inode.length, sectorSize));
+	    }
+	    else {
+		freeInode(inode);
+	    }
+	}
+
+	lock.acquire();
+	commit();
+	lock.release();
+    }
+
+    /**
+     * Copy files from the stub file system that are not on the disk yet.
+     */
+    private void importFiles(StringTokenizer names) {
+	FileSystem source = Machine.stubFileSystem();
+	Lib.assertTrue(source != null, "no file system to import files from");
+
+	while (names.hasMoreTokens()) {
+	    String name = names.nextToken();
+
+	    OpenFile file = open(name, false);
+	    if (file != null) {
+		file.close();
+		continue;
+	    }
+
+	    OpenFile from = source.open(name, false);
+	    Lib.assertTrue(from != null, "cannot import " + name);
+
+	    byte[] data = new byte[from.length()];
+	    Lib.assertTrue(from.read(0, data, 0, data.length) == data.length,
+			   "cannot import " + name);
+	    from.close();
+
+	    file = open(name, true);
+	    Lib.assertTrue(file != null &&
+			   file.write(0, data, 0, data.length) == data.length,
+			   "cannot import " + name);
+	    file.close();
+
+	    Lib.debug(dbgFileSys, "imported " + name);
+	}
+    }
+
+    public OpenFile open(String name, boolean create) {
+	if (!checkName(name))
+	    return null;
+
+	lock.acquire();
+
+	int number = directory.find(name);
+
+	if (number == -1 && create) {
+	    number = usedInodes.nextClearBit(0);
+
+	    if (number >= numInodes || !directory.add(name, number)) {
+		number = -1;
+	    }
+	    else {
+		usedInodes.set(number);
+
+		Inode inode = getInode(number);
+		inode.inUse = true;
+		inode.length = 0;
+		inode.save();
+	    }
+	}
+
+	OpenFile file = null;
+	if (number != -1) {
+	    Inode inode = getInode(number);
+	    inode.openCount++;
+	    file = new DiskOpenFile(name, inode);
+	}
+
+	commit();
+
+	lock.release();
+
+	return file;
+    }
+
+    public boolean remove(String name) {
+	if (!checkName(name))
+	    return false;
+
+	lock.acquire();
+
+	int number = directory.remove(name);
+	if (number != -1) {
+	    Inode inode = inodes.get(number);
+
+	    // an open file is freed when it is closed
+	    if (inode != null)
+		inode.removed = true;
+	    else
+		freeInode(new Inode(this, number));
+
+	    commit();
+	}
+
+	lock.release();
+
+	return number != -1;
+    }
+
+    private static boolean checkName(String name) {
+	if (name.length() == 0 || name.length() > Directory.maxNameLength)
+	    return false;
+
+	for (int i=0; i<name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c <= ' ' || c >= 0x7F || c == '/')
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Return the inode with the specified number, sharing the one already in
+     * memory if the file is open.
+     */
+    private Inode getInode(int number) {
+	Inode inode = inodes.get(number);
+	if (inode == null) {
+	    inode = new Inode(this, number);
+	    inodes.put(number, inode);
+	}
+
+	return inode;
+    }
+
+    private void freeInode(Inode inode) {
+	inode.truncate(0);
+	inode.inUse = false;
+	inode.length = 0;
+	inode.save();
+
+	usedInodes.clear(inode.number);
+    }
+
+    /**
+     * Return the offset in the metadata of an inode.
+     *
+     * @param	number	the inode number.
+     * @return	the offset of the inode.
+     */
+    int inodeOffset(int number) {
+	Lib.assertTrue(number >= 0 && number < numInodes);
+	return inodeStart*sectorSize + number*Inode.size;
+    }
+
+    /**
+     * Note that part of the metadata has changed, and must be written to the
+     * disk.
+     *
+     * @param	offset	the offset of the change in the metadata.
+     * @param	length	the number of bytes changed.
+     */
+    void markDirty(int offset, int length) {
+	for (int sector=offset/sectorSize;
+	     sector<=(offset+length-1)/sectorSize; sector++)
+	    dirty.add(sector);
+    }
+
+    /**
+     * Make the changes this thread has made to the metadata durable, by
+     * writing them to the journal. If the journal is being written, the
+     * changes wait for the next journal write, together with the changes of
+     * every other thread that commits meanwhile. The file system must be
+     * locked; it is released while the journal is being written.
+     */
+    private void commit() {
+	if (dirty.isEmpty())
+	    return;
+
+	numCommits++;
+
+	int group = openGroup;
+	while (committedGroup < group) {
+	    if (journalBusy)
+		journalDone.sleep();
+	    else
+		writeGroup();
+	}
+    }
+
+    /**
+     * Write every changed metadata sector to the journal, in one transfer.
+     * The sectors are split into records of a header sector followed by up
+     * to <tt>maxRecordSectors</tt> sector images; the header lists the
+     * sectors, says whether it is the last record of the group, and has a
+     * checksum of the record. The file system must be locked.
+     */
+    private void writeGroup() {
+	int group = openGroup++;
+
+	int[] sectors = new int[dirty.size()];
+	for (int i=0; i<sectors.length; i++)
+	    sectors[i] = dirty.pollFirst();
+
+	int numRecords = Lib.divRoundUp(sectors.length, maxRecordSectors);
+	int length = numRecords + sectors.length;
+
+	if (journalHead + length > journalSectors)
+	    checkpoint();
+
+	byte[] data = new byte[length*sectorSize];
+	byte[][] images = new byte[sectors.length][];
+
+	for (int r=0, i=0, pos=0; r<numRecords; r++) {
+	    int count = Math.min(sectors.length-i, maxRecordSectors);
+	    int header = pos*sectorSize;
+
+	    Lib.bytesFromInt(data, header+0, journalMagic);
+	    Lib.bytesFromInt(data, header+4, journalSeq++);
+	    Lib.bytesFromInt(data, header+8, count);
+	    Lib.bytesFromInt(data, header+12, (r == numRecords-1) ? 1 : 0);
+
+	    for (int j=0; j<count; j++, i++) {
+		Lib.bytesFromInt(data, header+20 + j*4, sectors[i]);
+
+		images[i] = new byte[sectorSize];
+		System.arraycopy(metadata, sectors[i]*sectorSize, images[i], 0,
+				 sectorSize);
+		System.arraycopy(images[i], 0, data, header+(j+1)*sectorSize,
+				 sectorSize);
+	    }
+
+	    Lib.bytesFromInt(data, header+16, checksum(data, header, count));
+	    pos += 1+count;
+	}
+
+	int start = journalStart + journalHead;
+	journalHead += length;
+
+	journalBusy = true;
+	lock.release();
+
+	disk.writeSectors(start, length, data, 0);
+
+	lock.acquire();
+	journalBusy = false;
+
+	for (int i=0; i<sectors.length; i++)
+	    logged.put(sectors[i], images[i]);
+
+	numJournalWrites++;
+	committedGroup = group;
+	journalDone.wakeAll();
+
+	Lib.debug(dbgFileSys, "committed " + sectors.length +
+		  " sectors in one journal write");
+    }
+
+    /**
+     * Write every sector in the journal to its home, and start the journal
+     * over. The file system must be locked, and the journal not busy.
+     */
+    private void checkpoint() {
+	Lib.debug(dbgFileSys, "checkpointing " + logged.size() + " sectors");
+
+	writeHome(logged);
+	logged.clear();
+
+	Lib.bytesFromInt(metadata, 16, journalSeq);
+	disk.writeSectors(0, 1, metadata, 0);
+
+	journalHead = 0;
+    }
+
+    /**
+     * Replay the journal of a file system being mounted. Starting at the
+     * beginning of the journal, every record is replayed whose sequence
+     * number follows the last one's, whose checksum is right, and whose
+     * group is complete; the first record that is not ends the journal.
+     */
+    private void replayJournal(byte[] superblock) {
+	byte[] journal = new byte[journalSectors*sectorSize];
+	disk.readSectors(journalStart, journalSectors, journal, 0);
+
+	TreeMap<Integer, byte[]> images = new TreeMap<Integer, byte[]>();
+	TreeMap<Integer, byte[]> group = new TreeMap<Integer, byte[]>();
+
+	int pos = 0, numGroups = 0;
+	while (pos < journalSectors) {
+	    int header = pos*sectorSize;
+	    int count = Lib.bytesToInt(journal, header+8);
+
+	    if (Lib.bytesToInt(journal, header+0) != journalMagic ||
+		Lib.bytesToInt(journal, header+4) != journalSeq ||
+		count <= 0 || count > maxRecordSectors ||
+		pos+1+count > journalSectors ||
+		Lib.bytesToInt(journal, header+16) !=
+		checksum(journal, header, count))
+		break;
+
+	    for (int j=0; j<count; j++) {
+		int sector = Lib.bytesToInt(journal, header+20 + j*4);
+		Lib.assertTrue(sector > 0 && sector < journalStart,
+			       "bad sector in journal");
+
+		byte[] image = new byte[sectorSize];
+		System.arraycopy(journal, header+(j+1)*sectorSize, image, 0,
+				 sectorSize);
+		group.put(sector, image);
+	    }
+
+	    if (Lib.bytesToInt(journal, header+12) != 0) {
+		images.putAll(group);
+		group.clear();
+		numGroups++;
+	    }
+
+	    journalSeq++;
+	    pos += 1+count;
+	}
+
+	Lib.debug(dbgFileSys, "replaying " + numGroups + " groups");
+
+	writeHome(images);
+
+	Lib.bytesFromInt(superblock, 16, journalSeq);
+	disk.writeSectors(0, 1, superblock, 0);
+    }
+
+    /**
+     * Write sector images to their homes, each run of adjacent sectors in
+     * one transfer.
+     */
+    private void writeHome(TreeMap<Integer, byte[]> images) {
+	while (!images.isEmpty()) {
+	    int first = images.firstKey(), count = 1;
+	    while (images.containsKey(first+count))
+		count++;
+
+	    byte[] data = new byte[count*sectorSize];
+	    for (int i=0; i<count; i++) {
+		System.arraycopy(images.remove(first+i), 0, data,
+				 i*sectorSize, sectorSize);
+	    }
+
+	    disk.writeSectors(first, count, data, 0);
+	}
+    }
+
+    /**
+     * Return the checksum of a journal record: the sector numbers in its
+     * header, and the sector images.
+     */
+    private static int checksum(byte[] data, int header, int count) {
+	CRC32 crc = new CRC32();
+	crc.update(data, header+20, (1+count)*sectorSize - 20);
+	return (int) crc.getValue();
+    }
+
+    /**
+     * Read from a file. Only the file is locked during the transfers, so that
+     * other files can be used meanwhile.
+     */
+    private int read(Inode inode, int pos, byte[] buf, int offset,
+		     int length) {
+	inode.lock.acquire();
+
+	int end = Math.min(pos+length, inode.length);
+	if (end > pos)
+	    transfer(inode, pos, end, buf, offset, false);
+
+	inode.lock.release();
+
+	return Math.max(end-pos, 0);
+    }
+
+    private int write(Inode inode, int pos, byte[] buf, int offset,
+		      int length) {
+	if (length == 0)
+	    return 0;
+
+	inode.lock.acquire();
+
+	// a write past the end of the file fills the gap with zeros
+	int gap = Math.max(pos-inode.length, 0);
+	if (gap > 0) {
+	    byte[] data = new byte[gap+length];
+	    System.arraycopy(buf, offset, data, gap, length);
+
+	    buf = data;
+	    offset = 0;
+	    pos -= gap;
+	    length += gap;
+	}
+
+	int end = pos+length;
+
+	lock.acquire();
+	inode.grow(Lib.divRoundUp(end, sectorSize));
+	commit();
+	lock.release();
+
+	end = Math.min(end, inode.getNumBlocks()*sectorSize);
+	if (end > pos)
+	    transfer(inode, pos, end, buf, offset, true);
+
+	if (end > inode.length) {
+	    lock.acquire();
+	    inode.length = end;
+	    inode.save();
+	    commit();
+	    lock.release();
+	}
+
+	inode.lock.release();
+
+	int amount = end-pos-gap;
+	if (amount <= 0 && length > gap)
+	    return -1;
+
+	return Math.max(amount, 0);
+    }
+
+    /**
+     * Transfer the bytes from <i>pos</i> to <i>end</i> of a file, which has
+     * sectors for them, with one disk request for each extent they cover.
+     * Sectors that are only partly written are read first, unless they are
+     * past the end of the file.
+     */
+    private void transfer(Inode inode, int pos, int end, byte[] buf,
+			  int offset, boolean write) {
+	while (pos < end) {
+	    int block = pos/sectorSize;
+	    int sector = inode.getSector(block);
+	    int count = Math.min(inode.getRun(block),
+				 Lib.divRoundUp(end, sectorSize) - block);
+
+	    int runStart = block*sectorSize;
+	    int runEnd = (block+count)*sectorSize;
+	    int amount = Math.min(end, runEnd) - pos;
+
+	    // whole sectors go straight between the disk and the buffer
+	    if (pos == runStart && amount == count*sectorSize) {
+		if (write)
+		    disk.writeSectors(sector, count, buf, offset);
+		else
+		    disk.readSectors(sector, count, buf, offset);
+	    }
+	    else if (!write) {
+		byte[] data = new byte[count*sectorSize];
+		disk.readSectors(sector, count, data, 0);
+		System.arraycopy(data, pos-runStart, buf, offset, amount);
+	    }
+	    else {
+		byte[] data = new byte[count*sectorSize];
+
+		if (pos > runStart && runStart < inode.length)
+		    disk.readSectors(sector, 1, data, 0);
+
+		int lastStart = runEnd - sectorSize;
+		if (pos+amount < runEnd && lastStart < inode.length &&
+		    (lastStart > runStart || pos == runStart)) {
+		    disk.readSectors(sector+count-1, 1, data,
+				     lastStart-runStart);
+		}
+
+		System.arraycopy(buf, offset, data, pos-runStart, amount);
+		disk.writeSectors(sector, count, data, 0);
+	    }
+
+	    pos += amount;
+	    offset += amount;
+	}
+    }
+
+    private void close(Inode inode) {
+	lock.acquire();
+
+	if (--inode.openCount == 0) {
+	    inodes.remove(inode.number);
+
+	    // give back the sectors allocated ahead of need
+	    if (inode.removed)
+		freeInode(inode);
+	    else
+		inode.truncate(Lib.divRoundUp(inode.length, sectorSize));
+
+	    commit();
+	}
+
+	lock.release();
+    }
+
+    private class DiskOpenFile extends OpenFileWithPosition {
+	DiskOpenFile(String name, Inode inode) {
+	    super(DiskFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= buf.length);
+
+	    if (inode == null || pos < 0)
+		return -1;
+
+	    return DiskFileSystem.this.read(inode, pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= buf.length);
+
+	    if (inode == null || pos < 0)
+		return -1;
+
+	    return DiskFileSystem.this.write(inode, pos, buf, offset, length);
+	}
+
+	public int length() {
+	    return (inode == null) ? -1 : inode.length;
+	}
+
+	public void close() {
+	    if (inode == null)
+		return;
+
+	    DiskFileSystem.this.close(inode);
+	    inode = null;
+	}
+
+	private Inode inode;
+    }
+
+    /** The number of operations that have changed the metadata. */
+    public int numCommits = 0;
+    /** The number of journal writes those changes took. */
+    public int numJournalWrites = 0;
+
+    /** The metadata, as it is on the first <tt>journalStart</tt> sectors. */
+    byte[] metadata;
+    /** The free-block bitmap. */
+    FreeMap freeMap;
+
+    private SynchDisk disk;
+    private int numSectors, numInodes;
+    private int inodeStart, directoryStart, journalStart, dataStart;
+    private int journalSectors;
+
+    private Directory directory;
+    /** The inodes that belong to files. */
+    private BitSet usedInodes = new BitSet();
+    /** The inodes of open files, by number. */
+    private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+    /** The metadata sectors changed since they were last committed. */
+    private TreeSet<Integer> dirty = new TreeSet<Integer>();
+
+    /** The committed image of each sector not written home yet. */
+    private TreeMap<Integer, byte[]> logged = new TreeMap<Integer, byte[]>();
+    /** The sequence number of the next journal record. */
+    private int journalSeq = 0;
+    /** Where the next journal record goes, from the start of the journal. */
+    private int journalHead = 0;
+    /** The group that the changes being made now will be committed in. */
+    private int openGroup = 1;
+    /** The last group written to the journal. */
+    private int committedGroup = 0;
+    /** <tt>true</tt> while a group is being written to the journal. */
+    private boolean journalBusy = false;
+
+    /** Held while the metadata or the open inodes are in use. */
+    private Lock lock = new Lock();
+    /** Signalled when a group has been written to the journal. */
+    private Condition journalDone = new Condition(lock);
+
+    private static final int sectorSize = Disk.sectorSize;
+    private static final int magic = 0x4E465332;
+    private static final int journalMagic = 0x4E464A31;
+    /** The number of sector images a journal record can hold. */
+    private static final int maxRecordSectors = (sectorSize-20)/4;
+
+    private static final char dbgFileSys = 'F';
+}
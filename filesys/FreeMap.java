@@ -0,0 +1,172 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.BitSet;
+
+/**
+ * The free-block bitmap of a <tt>DiskFileSystem</tt>. The whole bitmap is
+ * kept in memory; every change is also made to the file system's copy of
+ * the bitmap sectors, which are marked dirty.
+ *
+ * <p>
+ * Runs of free sectors are handed out next-fit, starting where the last
+ * allocation ended, so that files written one after the other are laid out
+ * one after the other.
+ */
+class FreeMap {
+    /**
+     * Load a free map from the file system's metadata.
+     *
+     * @param	fileSystem	the file system.
+     * @param	offset		the offset of the bitmap in the metadata.
+     * @param	numSectors	the number of sectors on the disk.
+     */
+    FreeMap(DiskFileSystem fileSystem, int offset, int numSectors) {
+	this.fileSystem = fileSystem;
+	this.offset = offset;
+	this.numSectors = numSectors;
+
+	byte[] metadata = fileSystem.metadata;
+	for (int i=0; i<numSectors; i++) {
+	    if ((metadata[offset + i/8] & (1 << (i%8))) != 0)
+		used.set(i);
+	}
+    }
+
+    /**
+     * Return the number of free sectors.
+     *
+     * @return	the number of free sectors.
+     */
+    int numFree() {
+	return numSectors - used.cardinality();
+    }
+
+    /**
+     * Mark a run of sectors used.
+     *
+     * @param	start	the first sector.
+     * @param	count	the number of sectors.
+     */
+    void markUsed(int start, int count) {
+	used.set(start, start+count);
+	save(start, count);
+    }
+
+    /**
+     * Free a run of used sectors.
+     *
+     * @param	start	the first sector.
+     * @param	count	the number of sectors.
+     */
+    void free(int start, int count) {
+	Lib.assertTrue(used.nextClearBit(start) >= start+count,
+		       "freeing a free sector");
+
+	used.clear(start, start+count);
+	save(start, count);
+    }
+
+    /**
+     * Allocate the free sectors starting at <i>sector</i>, up to
+     * <i>count</i> of them, so that a run that ends just before it can grow
+     * in place.
+     *
+     * @param	sector	the first sector to allocate.
+     * @param	count	the most sectors to allocate.
+     * @return	the number of sectors allocated, which may be zero.
+     */
+    int extend(int sector, int count) {
+	if (sector >= numSectors)
+	    return 0;
+
+	int end = used.nextSetBit(sector);
+	if (end < 0)
+	    end = numSectors;
+
+	count = Math.min(count, end-sector);
+	if (count > 0) {
+	    markUsed(sector, count);
+	    rotor = sector+count;
+	}
+
+	return count;
+    }
+
+    /**
+     * Allocate a run of free sectors. The first run of at least <i>count</i>
+     * free sectors at or after the end of the last allocation is used, and
+     * if there is none, the longest run of free sectors.
+     *
+     * @param	count	the number of sectors wanted.
+     * @return	the first sector and the length of the run allocated, or
+     *		<tt>null</tt> if the disk is full.
+     */
+    int[] allocate(int count) {
+	Lib.assertTrue(count > 0);
+
+	int[] best = null;
+
+	for (int pass=0; pass<2; pass++) {
+	    int from = (pass == 0) ? rotor : 0;
+	    int to = (pass == 0) ? numSectors : rotor;
+
+	    for (int start=used.nextClearBit(from); start<to; ) {
+		int end = used.nextSetBit(start);
+		if (end < 0 || end > numSectors)
+		    end = numSectors;
+
+		if (end-start >= count) {
+		    best = new int[] { start, count };
+		    break;
+		}
+		if (best == null || end-start > best[1])
+		    best = new int[] { start, end-start };
+
+		start = used.nextClearBit(end);
+	    }
+
+	    if (best != null && best[1] == count)
+		break;
+	}
+
+	if (best == null)
+	    return null;
+
+	markUsed(best[0], best[1]);
+	rotor = best[0]+best[1];
+	if (rotor >= numSectors)
+	    rotor = 0;
+
+	return best;
+    }
+
+    /**
+     * Copy the bits for a run of sectors to the metadata.
+     */
+    private void save(int start, int count) {
+	byte[] metadata = fileSystem.metadata;
+
+	int first = start/8, last = (start+count-1)/8;
+	for (int i=first; i<=last; i++) {
+	    int bits = 0;
+	    for (int j=0; j<8; j++) {
+		if (used.get(i*8 + j))
+		    bits |= 1 << j;
+	    }
+
+	    metadata[offset+i] = (byte) bits;
+	}
+
+	fileSystem.markDirty(offset+first, last-first+1);
+    }
+
+    private DiskFileSystem fileSystem;
+    private int offset, numSectors;
+
+    /** The used sectors. */
+    private BitSet used = new BitSet();
+    /** Where the next allocation starts looking. */
+    private int rotor = 0;
+}
@@ -0,0 +1,218 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * An inode of a <tt>DiskFileSystem</tt>, which records a file's length and
+ * the sectors holding its data, as a list of extents: runs of consecutive
+ * sectors. A file that is written sequentially usually fits in a few
+ * extents, so that it can be read with a few large transfers.
+ *
+ * <p>
+ * On disk, an inode takes <tt>size</tt> bytes: a flag saying whether it is
+ * in use, the file's length, the number of extents, and then the first
+ * sector and the length of each extent.
+ */
+class Inode {
+    /**
+     * Load an inode from the file system's metadata.
+     *
+     * @param	fileSystem	the file system.
+     * @param	number		the inode number.
+     */
+    Inode(DiskFileSystem fileSystem, int number) {
+	this.fileSystem = fileSystem;
+	this.number = number;
+
+	byte[] metadata = fileSystem.metadata;
+	int offset = fileSystem.inodeOffset(number);
+
+	inUse = Lib.bytesToInt(metadata, offset+0) != 0;
+	length = Lib.bytesToInt(metadata, offset+4);
+	numExtents = Lib.bytesToInt(metadata, offset+8);
+
+	for (int i=0; i<numExtents; i++) {
+	    extentStart[i] = Lib.bytesToInt(metadata, offset+16 + i*8);
+	    extentLength[i] = Lib.bytesToInt(metadata, offset+16 + i*8 + 4);
+	}
+    }
+
+    /**
+     * Copy this inode to the file system's metadata.
+     */
+    void save() {
+	byte[] metadata = fileSystem.metadata;
+	int offset = fileSystem.inodeOffset(number);
+
+	java.util.Arrays.fill(metadata, offset, offset+size, (byte) 0);
+
+	Lib.bytesFromInt(metadata, offset+0, inUse ? 1 : 0);
+	Lib.bytesFromInt(metadata, offset+4, length);
+	Lib.bytesFromInt(metadata, offset+8, numExtents);
+
+	for (int i=0; i<numExtents; i++) {
+	    Lib.bytesFromInt(metadata, offset+16 + i*8, extentStart[i]);
+	    Lib.bytesFromInt(metadata, offset+16 + i*8 + 4, extentLength[i]);
+	}
+
+	fileSystem.markDirty(offset, size);
+    }
+
+    /**
+     * Return the number of sectors allocated to this file, which may be more
+     * than it needs to hold its data.
+     *
+     * @return	the number of sectors allocated.
+     */
+    int getNumBlocks() {
+	int numBlocks = 0;
+	for (int i=0; i<numExtents; i++)
+	    numBlocks += extentLength[i];
+
+	return numBlocks;
+    }
+
+    /**
+     * Return the sector holding a block of this file.
+     *
+     * @param	block	the block number, less than <tt>getNumBlocks()</tt>.
+     * @return	the sector number.
+     */
+    int getSector(int block) {
+	for (int i=0; i<numExtents; i++) {
+	    if (block < extentLength[i])
+		return extentStart[i] + block;
+
+	    block -= extentLength[i];
+	}
+
+	Lib.assertNotReached("block past the end of the file");
+	return -1;
+    }
+
+    /**
+     * Return the number of blocks from <i>block</i> to the end of its extent,
+     * which are held in consecutive sectors.
+     *
+     * @param	block	the block number, less than <tt>getNumBlocks()</tt>.
+     * @return	the number of consecutive blocks.
+     */
+    int getRun(int block) {
+	for (int i=0; i<numExtents; i++) {
+	    if (block < extentLength[i])
+		return extentLength[i] - block;
+
+	    block -= extentLength[i];
+	}
+
+	Lib.assertNotReached("block past the end of the file");
+	return -1;
+    }
+
+    /**
+     * Allocate sectors to this file until it has at least <i>numBlocks</i>.
+     * The last extent is extended in place if the sectors after it are free,
+     * and otherwise a new extent is added. To keep a growing file in few
+     * extents, more sectors are allocated than asked for, up to as many as
+     * the file already has.
+     *
+     * @param	numBlocks	the number of blocks the file needs.
+     * @return	<tt>true</tt> if the file has enough sectors, or
+     *		<tt>false</tt> if the disk is full or the file has too many
+     *		extents. The sectors that could be allocated are kept.
+     */
+    boolean grow(int numBlocks) {
+	FreeMap freeMap = fileSystem.freeMap;
+
+	int allocated = getNumBlocks();
+	int oldAllocated = allocated;
+
+	while (allocated < numBlocks) {
+	    int need = numBlocks - allocated;
+	    int want = Math.max(need, Math.min(allocated, maxPreallocate));
+
+	    if (numExtents > 0) {
+		int last = numExtents-1;
+		int count =
+		    freeMap.extend(extentStart[last]+extentLength[last], want);
+
+		if (count > 0) {
+		    extentLength[last] += count;
+		    allocated += count;
+		    continue;
+		}
+	    }
+
+	    if (numExtents == maxExtents)
+		break;
+
+	    int[] run = freeMap.allocate(want);
+	    if (run == null)
+		break;
+
+	    extentStart[numExtents] = run[0];
+	    extentLength[numExtents] = run[1];
+	    numExtents++;
+	    allocated += run[1];
+	}
+
+	if (allocated != oldAllocated)
+	    save();
+
+	return allocated >= numBlocks;
+    }
+
+    /**
+     * Free the sectors of this file past the first <i>numBlocks</i>.
+     *
+     * @param	numBlocks	the number of blocks to keep.
+     */
+    void truncate(int numBlocks) {
+	FreeMap freeMap = fileSystem.freeMap;
+
+	int allocated = getNumBlocks();
+	if (allocated <= numBlocks)
+	    return;
+
+	while (allocated > numBlocks) {
+	    int last = numExtents-1;
+	    int count = Math.min(extentLength[last], allocated-numBlocks);
+
+	    freeMap.free(extentStart[last]+extentLength[last]-count, count);
+	    extentLength[last] -= count;
+	    allocated -= count;
+
+	    if (extentLength[last] == 0)
+		numExtents--;
+	}
+
+	save();
+    }
+
+    /** The number of bytes an inode takes on disk. */
+    static final int size = 128;
+    /** The number of extents that fit in an inode. */
+    static final int maxExtents = (size-16)/8;
+    /** The most sectors allocated to a file beyond what it needs. */
+    static final int maxPreallocate = 64;
+
+    /** The inode number. */
+    final int number;
+    /** <tt>true</tt> if this inode belongs to a file. */
+    boolean inUse;
+    /** The length of the file, in bytes. */
+    int length;
+
+    /** The number of <tt>OpenFile</tt>s for this file. */
+    int openCount = 0;
+    /** <tt>true</tt> if the file has been removed while open. */
+    boolean removed = false;
+    /** Held while reading or writing the file's data. */
+    Lock lock = new Lock();
+
+    private DiskFileSystem fileSystem;
+    private int numExtents;
+    private int[] extentStart = new int[maxExtents];
+    private int[] extentLength = new int[maxExtents];
+}
@@ -0,0 +1,434 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * Assembles a JVM class file in memory. Only the small subset of the class
+ * file format needed by the processor's block translator is supported: a
+ * constant pool, methods with a <tt>Code</tt> attribute, and exception
+ * tables. Classes are written with version 49.0, so no stack map frames need
+ * to be computed.
+ */
+final class ClassFileWriter {
+    /**
+     * Allocate a new class file writer.
+     *
+     * @param	className	the internal name of the class to generate.
+     * @param	superName	the internal name of its superclass.
+     */
+    ClassFileWriter(String className, String superName) {
+	thisClass = classConstant(className);
+	superClass = classConstant(superName);
+    }
+
+    /**
+     * Return the constant pool index of a <tt>CONSTANT_Class</tt> entry.
+     *
+     * @param	name	the internal name of the class.
+     * @return	the constant pool index.
+     */
+    int classConstant(String name) {
+	return constant("C" + name, 7, utf8Constant(name), -1);
+    }
+
+    /**
+     * Return the constant pool index of a <tt>CONSTANT_Fieldref</tt> entry.
+     *
+     * @param	owner	the internal name of the class declaring the field.
+     * @param	name	the name of the field.
+     * @param	desc	the type descriptor of the field.
+     * @return	the constant pool index.
+     */
+    int fieldConstant(String owner, String name, String desc) {
+	return constant("F" + owner + "." + name + ":" + desc, 9,
+			classConstant(owner), nameAndType(name, desc));
+    }
+
+    /**
+     * Return the constant pool index of a <tt>CONSTANT_Methodref</tt> entry.
+     *
+     * @param	owner	the internal name of the class declaring the method.
+     * @param	name	the name of the method.
+     * @param	desc	the method descriptor.
+     * @return	the constant pool index.
+     */
+    int methodConstant(String owner, String name, String desc) {
+	return constant("M" + owner + "." + name + desc, 10,
+			classConstant(owner), nameAndType(name, desc));
+    }
+
+    /**
+     * Return the constant pool index of a <tt>CONSTANT_Integer</tt> entry.
+     *
+     * @param	value	the value of the constant.
+     * @return	the constant pool index.
+     */
+    int intConstant(int value) {
+	return constant("I" + value, 3, value, -1);
+    }
+
+    /**
+     * Return the constant pool index of a <tt>CONSTANT_Long</tt> entry.
+     *
+     * @param	value	the value of the constant.
+     * @return	the constant pool index.
+     */
+    int longConstant(long value) {
+	return constant("J" + value, 5, (int) (value >>> 32), (int) value);
+    }
+
+    private int utf8Constant(String value) {
+	Integer index = constantIndices.get("U" + value);
+	if (index != null)
+	    return index.intValue();
+
+	try {
+	    pool.writeByte(1);
+	    pool.writeUTF(value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	constantIndices.put("U" + value, new Integer(numConstants));
+	return numConstants++;
+    }
+
+    private int nameAndType(String name, String desc) {
+	return constant("N" + name + ":" + desc, 12,
+			utf8Constant(name), utf8Constant(desc));
+    }
+
+    /**
+     * Return the index of a constant pool entry consisting of a tag and one
+     * or two 16-bit or 32-bit operands, adding it if necessary. Integer
+     * constants use one 32-bit operand, long constants two 32-bit operands,
+     * and all other entries one or two 16-bit constant pool indices.
+     */
+    private int constant(String key, int tag, int first, int second) {
+	Integer index = constantIndices.get(key);
+	if (index != null)
+	    return index.intValue();
+
+	try {
+	    pool.writeByte(tag);
+	    switch (tag) {
+	    case 3:
+		pool.writeInt(first);
+		break;
+	    case 5:
+		pool.writeInt(first);
+		pool.writeInt(second);
+		break;
+	    default:
+		pool.writeShort(first);
+		if (second != -1)
+		    pool.writeShort(second);
+		break;
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	int result = numConstants;
+	constantIndices.put(key, new Integer(result));
+
+	// long constants take up two constant pool entries
+	numConstants += (tag == 5) ? 2 : 1;
+	return result;
+    }
+
+    /**
+     * Add a method to the class.
+     *
+     * @param	access	the method's access flags.
+     * @param	name	the name of the method.
+     * @param	desc	the method descriptor.
+     * @param	code	the body of the method.
+     */
+    void addMethod(int access, String name, String desc, Code code) {
+	Lib.assertTrue(code.size() < 0x10000);
+
+	int nameIndex = utf8Constant(name);
+	int descIndex = utf8Constant(desc);
+	int codeIndex = utf8Constant("Code");
+
+	try {
+	    methods.writeShort(access);
+	    methods.writeShort(nameIndex);
+	    methods.writeShort(descIndex);
+	    methods.writeShort(1);
+
+	    methods.writeShort(codeIndex);
+	    methods.writeInt(12 + code.size() + 8*code.handlers.size());
+	    methods.writeShort(code.maxStack);
+	    methods.writeShort(code.maxLocals);
+	    methods.writeInt(code.size());
+	    code.bytes.writeTo(methods);
+
+	    methods.writeShort(code.handlers.size());
+	    for (Iterator<Label[]> i=code.handlers.iterator(); i.hasNext(); ) {
+		Label[] handler = i.next();
+		methods.writeShort(handler[0].position);
+		methods.writeShort(handler[1].position);
+		methods.writeShort(handler[2].position);
+		methods.writeShort(0);
+	    }
+
+	    methods.writeShort(0);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	numMethods++;
+    }
+
+    /**
+     * Return the complete class file.
+     *
+     * @return	the bytes of the class file.
+     */
+    byte[] toByteArray() {
+	ByteArrayOutputStream result = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(result);
+
+	try {
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(49);
+	    out.writeShort(numConstants);
+	    poolBytes.writeTo(out);
+	    out.writeShort(0x0031);		// public final super
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(0);			// interfaces
+	    out.writeShort(0);			// fields
+	    out.writeShort(numMethods);
+	    methodBytes.writeTo(out);
+	    out.writeShort(0);			// attributes
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	return result.toByteArray();
+    }
+
+    /**
+     * A position in a method's bytecode that can be the target of a jump or
+     * the boundary of an exception handler.
+     */
+    static final class Label {
+	private int position = -1;
+	private LinkedList<Integer> fixups = new LinkedList<Integer>();
+    }
+
+    /**
+     * The body of a method.
+     */
+    static final class Code {
+	/**
+	 * Allocate a new method body.
+	 *
+	 * @param	maxStack	the maximum depth of the operand stack.
+	 * @param	maxLocals	the number of local variable slots.
+	 */
+	Code(int maxStack, int maxLocals) {
+	    this.maxStack = maxStack;
+	    this.maxLocals = maxLocals;
+	}
+
+	/** Emit an instruction with no operands. */
+	void op(int opcode) {
+	    bytes.write(opcode);
+	}
+
+	/** Emit an instruction with a one-byte operand. */
+	void op1(int opcode, int operand) {
+	    bytes.write(opcode);
+	    bytes.write(operand);
+	}
+
+	/** Emit an instruction with a two-byte operand. */
+	void op2(int opcode, int operand) {
+	    bytes.write(opcode);
+	    bytes.write(operand >> 8);
+	    bytes.write(operand);
+	}
+
+	/**
+	 * Push an integer constant, using the shortest available encoding.
+	 *
+	 * @param	writer	the class file, for large constants.
+	 * @param	value	the constant to push.
+	 */
+	void iconst(ClassFileWriter writer, int value) {
+	    if (value >= -1 && value <= 5)
+		op(ICONST_0 + value);
+	    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+		op1(BIPUSH, value);
+	    else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+		op2(SIPUSH, value);
+	    else
+		op2(LDC_W, writer.intConstant(value));
+	}
+
+	/** Load an <tt>int</tt> local variable. */
+	void iload(int local) {
+	    Lib.assertTrue(local < maxLocals && local < 0x100);
+	    if (local < 4)
+		op(ILOAD_0 + local);
+	    else
+		op1(ILOAD, local);
+	}
+
+	/** Store an <tt>int</tt> local variable. */
+	void istore(int local) {
+	    Lib.assertTrue(local < maxLocals && local < 0x100);
+	    if (local < 4)
+		op(ISTORE_0 + local);
+	    else
+		op1(ISTORE, local);
+	}
+
+	/**
+	 * Emit a jump instruction to the specified label.
+	 *
+	 * @param	opcode	a conditional branch or <tt>goto</tt>.
+	 * @param	target	the destination of the jump.
+	 */
+	void jump(int opcode, Label target) {
+	    int position = size();
+	    bytes.write(opcode);
+	    if (target.position != -1) {
+		int offset = target.position - position;
+		bytes.write(offset >> 8);
+		bytes.write(offset);
+	    }
+	    else {
+		target.fixups.add(new Integer(position));
+		bytes.write(0);
+		bytes.write(0);
+	    }
+	}
+
+	/**
+	 * Bind the specified label to the current position, resolving any
+	 * jumps already emitted to it.
+	 *
+	 * @param	label	the label to bind.
+	 */
+	void mark(Label label) {
+	    Lib.assertTrue(label.position == -1);
+	    label.position = size();
+
+	    if (label.fixups.isEmpty())
+		return;
+
+	    byte[] code = bytes.toByteArray();
+	    for (Iterator<Integer> i=label.fixups.iterator(); i.hasNext(); ) {
+		int position = i.next().intValue();
+		int offset = label.position - position;
+		code[position+1] = (byte) (offset >> 8);
+		code[position+2] = (byte) offset;
+	    }
+	    label.fixups.clear();
+
+	    bytes.reset();
+	    bytes.write(code, 0, code.length);
+	}
+
+	/**
+	 * Add a catch-all exception handler.
+	 *
+	 * @param	start	the first instruction covered by the handler.
+	 * @param	end	the first instruction not covered by the handler.
+	 * @param	handler	the start of the handler.
+	 */
+	void handler(Label start, Label end, Label handler) {
+	    handlers.add(new Label[] { start, end, handler });
+	}
+
+	/** Return the number of bytes emitted so far. */
+	int size() {
+	    return bytes.size();
+	}
+
+	private int maxStack, maxLocals;
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private LinkedList<Label[]> handlers = new LinkedList<Label[]>();
+    }
+
+    private int thisClass, superClass;
+
+    private int numConstants = 1;
+    private HashMap<String, Integer> constantIndices =
+	new HashMap<String, Integer>();
+    private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private DataOutputStream pool = new DataOutputStream(poolBytes);
+
+    private int numMethods = 0;
+    private ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private DataOutputStream methods = new DataOutputStream(methodBytes);
+
+    static final int
+	ACC_PUBLIC	= 0x0001,
+	ACC_FINAL	= 0x0010;
+
+    static final int
+	ICONST_M1	= 0x02,
+	ICONST_0	= 0x03,
+	BIPUSH		= 0x10,
+	SIPUSH		= 0x11,
+	LDC_W		= 0x13,
+	LDC2_W		= 0x14,
+	ILOAD		= 0x15,
+	ILOAD_0		= 0x1a,
+	ALOAD_0		= 0x2a,
+	ALOAD_1		= 0x2b,
+	IALOAD		= 0x2e,
+	ISTORE		= 0x36,
+	ISTORE_0	= 0x3b,
+	IASTORE		= 0x4f,
+	POP2		= 0x58,
+	DUP2		= 0x5c,
+	IADD		= 0x60,
+	ISUB		= 0x64,
+	LMUL		= 0x69,
+	ISHL		= 0x78,
+	LSHL		= 0x79,
+	ISHR		= 0x7a,
+	LSHR		= 0x7b,
+	IUSHR		= 0x7c,
+	IAND		= 0x7e,
+	LAND		= 0x7f,
+	IOR		= 0x80,
+	IXOR		= 0x82,
+	I2L		= 0x85,
+	L2I		= 0x88,
+	IFEQ		= 0x99,
+	IFNE		= 0x9a,
+	IFLT		= 0x9b,
+	IFGE		= 0x9c,
+	IFGT		= 0x9d,
+	IFLE		= 0x9e,
+	IF_ICMPEQ	= 0x9f,
+	IF_ICMPNE	= 0xa0,
+	IF_ICMPLT	= 0xa1,
+	IF_ICMPGE	= 0xa2,
+	GOTO		= 0xa7,
+	RETURN		= 0xb1,
+	PUTFIELD	= 0xb5,
+	INVOKEVIRTUAL	= 0xb6,
+	INVOKESPECIAL	= 0xb7,
+	ATHROW		= 0xbf;
+}
@@ -0,0 +1,225 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A simulated disk, backed by an image file in the host's file system. The
+ * disk has <tt>Disk.numTracks</tt> tracks of <tt>Disk.sectorsPerTrack</tt>
+ * sectors each, and its contents are kept in the file named by
+ * <tt>Disk.imageFile</tt>, so they survive from one run to the next.
+ *
+ * <p>
+ * The disk handles one request at a time, for a run of consecutive sectors.
+ * A request completes after the time it takes to move the head to the first
+ * sector's track, wait for the sector to rotate under the head, and transfer
+ * every sector, at which point the interrupt handler is called. Moving the
+ * head across every track takes <tt>Stats.SeekTime</tt>, and one rotation
+ * takes <tt>Stats.RotationTime</tt>, so requests for sectors close to the
+ * head complete sooner.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory holding the image file.
+     */
+    public Disk(Privilege privilege, File directory) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 32);
+	sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+	Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0);
+	numSectors = numTracks*sectorsPerTrack;
+
+	final File f =
+	    new File(directory, Config.getString("Disk.imageFile", "nachos.dsk"));
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openImage(f); }
+	    });
+
+	Lib.assertTrue(image != null, "could not open disk image " + f);
+
+	completionInterrupt = new Runnable() {
+		public void run() { completionInterrupt(); }
+	    };
+    }
+
+    private void openImage(File f) {
+	try {
+	    image = new RandomAccessFile(f, "rw");
+
+	    if (image.length() < numSectors*sectorSize)
+		image.setLength(numSectors*sectorSize);
+	}
+	catch (IOException e) {
+	    image = null;
+	}
+    }
+
+    /**
+     * Set this disk's interrupt handler, which is called each time a request
+     * completes. Another request can then be started.
+     *
+     * @param	interruptHandler	the callback to call when a request
+     *					completes.
+     */
+    public void setInterruptHandler(Runnable interruptHandler) {
+	this.interruptHandler = interruptHandler;
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numSectors;
+    }
+
+    /**
+     * Return the number of sectors on each track of this disk.
+     *
+     * @return	the number of sectors per track.
+     */
+    public int getSectorsPerTrack() {
+	return sectorsPerTrack;
+    }
+
+    /**
+     * Start reading a run of consecutive sectors. The data is stored in
+     * <i>buf</i> when the request completes, and not before. No other
+     * request may be in progress.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	buf	the buffer to store the data in.
+     * @param	offset	the offset in <i>buf</i> of the first sector.
+     */
+    public void readRequest(int sector, int count, byte[] buf, int offset) {
+	startRequest(sector, count, buf, offset, false);
+    }
+
+    /**
+     * Start writing a run of consecutive sectors. The data is copied from
+     * <i>buf</i> immediately, and reaches the disk when the request
+     * completes. No other request may be in progress.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	buf	the buffer containing the data.
+     * @param	offset	the offset in <i>buf</i> of the first sector.
+     */
+    public void writeRequest(int sector, int count, byte[] buf, int offset) {
+	byte[] data = new byte[count*sectorSize];
+	System.arraycopy(buf, offset, data, 0, data.length);
+
+	startRequest(sector, count, data, 0, true);
+    }
+
+    private void startRequest(int sector, int count, byte[] buf, int offset,
+			      boolean write) {
+	Lib.assertTrue(!busy, "disk request already in progress");
+	Lib.assertTrue(sector >= 0 && count > 0 && sector+count <= numSectors);
+	Lib.assertTrue(offset >= 0 && offset+count*sectorSize <= buf.length);
+
+	busy = true;
+	requestSector = sector;
+	requestCount = count;
+	requestBuf = buf;
+	requestOffset = offset;
+	requestWrite = write;
+
+	int latency = computeLatency(sector, count);
+
+	Lib.debug(dbgDisk, (write ? "writing" : "reading") + " sectors " +
+		  sector + "-" + (sector+count-1) + ", latency " + latency);
+
+	privilege.interrupt.schedule(latency, "disk", completionInterrupt);
+    }
+
+    /**
+     * Return the time to seek to a sector's track, wait for it to reach the
+     * head, and transfer a run of sectors from there, and move the head.
+     */
+    private int computeLatency(int sector, int count) {
+	int track = sector / sectorsPerTrack;
+	int seek = Lib.divRoundUp(Math.abs(track-headTrack)*Stats.SeekTime,
+				  numTracks);
+
+	// where the disk has rotated to once the seek is done
+	long time = privilege.stats.totalTicks + seek;
+	int angle = (int) (time % Stats.RotationTime);
+	int target = (sector % sectorsPerTrack) * Stats.RotationTime /
+	    sectorsPerTrack;
+	int rotation = (target - angle + Stats.RotationTime) %
+	    Stats.RotationTime;
+
+	// track-to-track switches during the transfer
+	int lastTrack = (sector+count-1) / sectorsPerTrack;
+	int transfer =
+	    Lib.divRoundUp(count*Stats.RotationTime, sectorsPerTrack) +
+	    Lib.divRoundUp((lastTrack-track)*Stats.SeekTime, numTracks);
+
+	headTrack = lastTrack;
+
+	return Math.max(1, seek + rotation + transfer);
+    }
+
+    private void completionInterrupt() {
+	Lib.assertTrue(busy);
+
+	try {
+	    image.seek((long) requestSector*sectorSize);
+
+	    if (requestWrite) {
+		image.write(requestBuf, requestOffset,
+			    requestCount*sectorSize);
+		privilege.stats.numDiskWrites += requestCount;
+	    }
+	    else {
+		image.readFully(requestBuf, requestOffset,
+				requestCount*sectorSize);
+		privilege.stats.numDiskReads += requestCount;
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk image I/O failed");
+	}
+
+	busy = false;
+	requestBuf = null;
+
+	if (interruptHandler != null)
+	    interruptHandler.run();
+    }
+
+    /** The number of bytes in a sector. */
+    public static final int sectorSize = 512;
+
+    private Privilege privilege;
+    private RandomAccessFile image = null;
+    private Runnable completionInterrupt;
+    private Runnable interruptHandler = null;
+
+    private int numTracks, sectorsPerTrack, numSectors;
+    /** The track the head is over. */
+    private int headTrack = 0;
+
+    private boolean busy = false;
+    private int requestSector, requestCount, requestOffset;
+    private byte[] requestBuf;
+    private boolean requestWrite;
+
+    private static final char dbgDisk = 'd';
+}
@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
     }
 
     /**
@@ -120,17 +118,45 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to just before the next pending interrupt is
+     * due, so that the next tick invokes it. Called by the kernel when it has
+     * no thread to run, instead of spinning until an interrupt occurs. The
+     * time skipped is a whole number of kernel ticks, so the interrupt is
+     * invoked at exactly the same time as if the kernel had spun.
+     *
+     * <p>
+     * Interrupts must be disabled, and the next thing to advance the
+     * simulated time must be the kernel re-enabling them.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	// when tracing every tick, spin like before
+	if (numPending == 0 || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+	long skipped = (pending[0].time - stats.totalTicks - 1) / Stats.KernelTick;
+	if (skipped <= 0)
+	    return;
+
+	stats.kernelTicks += skipped * Stats.KernelTick;
+	stats.totalTicks += skipped * Stats.KernelTick;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocate(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    Lib.debug(dbgInt,
+		      "Scheduling the " + type +
+		      " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	add(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -161,18 +187,13 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (numPending == 0 || pending[0].time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirst();
 
 	    Lib.assertTrue(next.time <= time);
 
@@ -180,8 +201,12 @@ public final class Interrupt {
 		privilege.processor.flushPipe();
 
 	    Lib.debug(dbgInt, "  " + next.type);
-			
-	    next.handler.run();
+
+	    // the handler may schedule more interrupts, so recycle first
+	    Runnable handler = next.handler;
+	    free(next);
+	    
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +217,11 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,17 +229,91 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Return a pending interrupt for the specified handler, reusing a free
+     * one if possible.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur == null)
+	    toOccur = new PendingInterrupt();
+	else
+	    freeList = toOccur.nextFree;
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+	
+	return toOccur;
+    }
+
+    private void free(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.nextFree = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add a pending interrupt to the heap.
+     */
+    private void add(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, numPending*2);
+
+	// sift up
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (pending[parent].compareTo(toOccur) <= 0)
+		break;
+
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending == 0)
+	    return first;
+
+	// sift down
+	int i = 0;
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= numPending)
+		break;
+	    if (child+1 < numPending &&
+		pending[child+1].compareTo(pending[child]) < 0)
+		child++;
+	    if (last.compareTo(pending[child]) <= 0)
+		break;
+
+	    pending[i] = pending[child];
+	    i = child;
 	}
+	pending[i] = last;
 
+	return first;
+    }
+
+    private class PendingInterrupt implements Comparable {
 	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	    return compareTo((PendingInterrupt) o);
+	}
 
+	int compareTo(PendingInterrupt toOccur) {
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
 		return -1;
@@ -230,6 +332,7 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +340,11 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** A binary min-heap of pending interrupts, ordered by (time, id). */
+    private PendingInterrupt[] pending;
+    private int numPending = 0;
+    /** Recycled pending interrupts. */
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +356,24 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long nextInterruptTime() {
+	    if (numPending == 0)
+		return Long.MAX_VALUE;
+	    
+	    return pending[0].time;
+	}
+
+	public void skipUserTicks(int count) {
+	    Stats stats = privilege.stats;
+
+	    for (int i=0; i<count; i++) {
+		stats.userTicks += Stats.UserTick;
+		stats.totalTicks += Stats.UserTick;
+
+		if (Lib.test(dbgInt))
+		    System.out.println("== Tick " + stats.totalTicks + " ==");
+	    }
+	}
     }
 }
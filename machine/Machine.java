@@ -182,8 +182,15 @@ public final class Machine {
 	if (Config.getBoolean("Machine.console"))
 	    console = new StandardConsole(privilege);
 
-	if (Config.getBoolean("Machine.stubFileSystem"))
-	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
+	if (Config.getBoolean("Machine.stubFileSystem")) {
+	    if (Config.getBoolean("Machine.mappedFileSystem", false))
+		stubFileSystem = new MappedFileSystem(privilege, testDirectory);
+	    else
+		stubFileSystem = new StubFileSystem(privilege, testDirectory);
+	}
+
+	if (Config.getBoolean("Machine.disk", false))
+	    disk = new Disk(privilege, testDirectory);
 
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
@@ -331,12 +338,20 @@ public final class Machine {
     public static SerialConsole console() { return console; }
     
     /**
-     * Return the stub filesystem.
+     * Return the stub filesystem. This is a <tt>MappedFileSystem</tt> if
+     * <tt>Machine.mappedFileSystem</tt> is set.
      *
      * @return	the stub file system, or <tt>null</tt> if it is not present.
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
     
+    /**
+     * Return the simulated disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
+    
     /**
      * Return the network link.
      *
@@ -357,6 +372,7 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
 
@@ -0,0 +1,226 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashMap;
+
+/**
+ * A stub file system that maps each open host file into memory, so that
+ * reading and writing a file only copies memory instead of making a host
+ * system call. Every open <tt>OpenFile</tt> for the same file shares one
+ * mapping. Requests take the same simulated time as in
+ * <tt>StubFileSystem</tt>.
+ *
+ * <p>
+ * A write past the end of the mapping maps the file again, at least twice as
+ * large, which extends the host file. The host file is cut back to the
+ * length written when its last <tt>OpenFile</tt> is closed.
+ */
+public class MappedFileSystem extends StubFileSystem {
+    /**
+     * Allocate a new mapped file system.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the root directory of the file system.
+     */
+    public MappedFileSystem(Privilege privilege, File directory) {
+	super(privilege, directory);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	if (!checkName(name))
+	    return null;
+
+	delay();
+
+	MappedFile file = files.get(name);
+
+	try {
+	    if (file == null) {
+		HostFile host = getHostFile(name, truncate);
+		if (host == null)
+		    return null;
+
+		file = new MappedFile(host);
+		files.put(name, file);
+	    }
+	    else if (truncate) {
+		file.truncate();
+	    }
+	}
+	catch (IOException e) {
+	    return null;
+	}
+
+	file.openCount++;
+
+	return new MappedOpenFile(name, file);
+    }
+
+    public boolean remove(String name) {
+	boolean successful = super.remove(name);
+
+	// files still open keep the mapping of the removed file
+	if (successful)
+	    files.remove(name);
+
+	return successful;
+    }
+
+    /**
+     * A host file and its mapping, shared by every <tt>OpenFile</tt> for it.
+     * The mapping stays valid if the pool closes the host descriptor, which
+     * is only needed again to change the mapping.
+     */
+    private class MappedFile {
+	MappedFile(HostFile host) throws IOException {
+	    this.host = host;
+
+	    try {
+		length = (int) host.getFile().length();
+		map(length);
+	    }
+	    catch (IOException e) {
+		host.release();
+		throw e;
+	    }
+	}
+
+	/**
+	 * Map the first <i>size</i> bytes of the file, extending the file if
+	 * it is shorter. The host's mapping support may need privilege to
+	 * initialize itself.
+	 */
+	void map(final int size) throws IOException {
+	    try {
+		mapping = (MappedByteBuffer) privilege.doPrivileged(
+		    new PrivilegedExceptionAction<MappedByteBuffer>() {
+			public MappedByteBuffer run() throws IOException {
+			    FileChannel channel = host.getFile().getChannel();
+			    return channel.map(FileChannel.MapMode.READ_WRITE,
+					       0, size);
+			}
+		    });
+	    }
+	    catch (PrivilegedActionException e) {
+		throw (IOException) e.getException();
+	    }
+	}
+
+	void truncate() throws IOException {
+	    host.getFile().setLength(0);
+	    length = 0;
+	    map(0);
+	}
+
+	/**
+	 * Make sure the mapping covers the first <i>size</i> bytes of the
+	 * file.
+	 */
+	void ensureCapacity(int size) throws IOException {
+	    if (size > mapping.capacity())
+		map(Math.max(size, Math.max(2*mapping.capacity(), minMapping)));
+	}
+
+	void close() {
+	    mapping = null;
+
+	    try {
+		host.getFile().setLength(length);
+	    }
+	    catch (IOException e) {
+	    }
+
+	    host.release();
+	}
+
+	HostFile host;
+	MappedByteBuffer mapping;
+	/** The length of the file, which may be less than the host file's. */
+	int length;
+	int openCount = 0;
+    }
+
+    private class MappedOpenFile extends OpenFileWithPosition {
+	MappedOpenFile(String name, MappedFile file) {
+	    super(MappedFileSystem.this, name);
+
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0)
+		return -1;
+
+	    delay();
+
+	    int amount = Math.max(0, Math.min(length, file.length-pos));
+	    if (amount > 0) {
+		ByteBuffer mapping = file.mapping.duplicate();
+		mapping.position(pos);
+		mapping.get(buf, offset, amount);
+	    }
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0)
+		return -1;
+
+	    delay();
+
+	    try {
+		file.ensureCapacity(pos+length);
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+
+	    ByteBuffer mapping = file.mapping.duplicate();
+	    mapping.position(pos);
+	    mapping.put(buf, offset, length);
+
+	    file.length = Math.max(file.length, pos+length);
+
+	    return length;
+	}
+
+	public int length() {
+	    return (file == null) ? -1 : file.length;
+	}
+
+	public void close() {
+	    if (file == null)
+		return;
+
+	    if (--file.openCount == 0) {
+		file.close();
+
+		if (files.get(getName()) == file)
+		    files.remove(getName());
+	    }
+
+	    file = null;
+	}
+
+	private MappedFile file;
+    }
+
+    /** The files with an open <tt>OpenFile</tt>, by name. */
+    private HashMap<String, MappedFile> files =
+	new HashMap<String, MappedFile>();
+
+    /** The smallest mapping made to extend a file. */
+    private static final int minMapping = 0x10000;
+}
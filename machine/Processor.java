@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.security.PrivilegedAction;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,6 +48,19 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodeCache = new DecodedInstruction[numPhysPages][];
+
+	// debug flags are fixed by now, so pick the execution loop once
+	traceMemory = Lib.test(dbgProcessor);
+	tracing = traceMemory || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble);
+
+	if (Config.getBoolean("Processor.jit", false) && !tracing)
+	    translator = new BlockTranslator();
+	else
+	    translator = null;
+
+	flushTranslationCache();
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -92,6 +107,22 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	if (tracing) {
+	    while (true) {
+		try {
+		    inst.trace();
+		}
+		catch (MipsException e) {
+		    e.handle();
+		}
+
+		privilege.interrupt.tick(false);
+	    }
+	}
+
+	if (translator != null)
+	    translator.run(inst);
 	
 	while (true) {
 	    try {
@@ -130,6 +161,33 @@ public final class Processor {
 	    registers[number] = value;
     }
 
+    /**
+     * Copy the contents of every CPU register into an array, in register
+     * number order. Equivalent to calling <tt>readRegister()</tt> on each.
+     *
+     * @param	values	an array of at least <tt>numUserRegisters</tt>
+     *			elements to receive the register contents.
+     */
+    public void readRegisters(int[] values) {
+	Lib.assertTrue(values.length >= numUserRegisters);
+
+	System.arraycopy(registers, 0, values, 0, numUserRegisters);
+    }
+
+    /**
+     * Load every CPU register from an array, in register number order.
+     * Equivalent to calling <tt>writeRegister()</tt> on each.
+     *
+     * @param	values	an array of at least <tt>numUserRegisters</tt>
+     *			elements holding the new register contents.
+     */
+    public void writeRegisters(int[] values) {
+	Lib.assertTrue(values.length >= numUserRegisters);
+
+	// register 0 is always zero
+	System.arraycopy(values, 1, registers, 1, numUserRegisters-1);
+    }
+
     /**
      * Test whether this processor uses a software-managed TLB, or single-level
      * paging.
@@ -175,6 +233,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushTranslationCache();
     }
 
     /**
@@ -215,9 +274,60 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	invalidateTranslation(translations[number].vpn);
+	invalidateTranslation(entry.vpn);
+	
 	translations[number] = new TranslationEntry(entry);
     }
 
+    /**
+     * Record that the kernel handled a TLB miss by bringing the page into
+     * memory. With a TLB, the processor cannot tell a page fault from a TLB
+     * miss, so the kernel reports page faults itself.
+     */
+    public void recordPageFault() {
+	Lib.assertTrue(usingTLB);
+	
+	privilege.stats.numPageFaults++;
+    }
+
+    /**
+     * Record that the kernel handled a TLB miss on a page that was already
+     * in memory.
+     */
+    public void recordPageHit() {
+	Lib.assertTrue(usingTLB);
+	
+	privilege.stats.numPageHits++;
+    }
+
+    /**
+     * Set the current address space. Only TLB entries whose <tt>asid</tt>
+     * matches the current address space translate addresses, so the kernel
+     * can leave the entries of other processes in the TLB across a context
+     * switch. The address space is initially 0, as is the <tt>asid</tt> of a
+     * new <tt>TranslationEntry</tt>.
+     *
+     * @param	asid	the ID of the new address space.
+     */
+    public void setAddressSpace(int asid) {
+	Lib.assertTrue(usingTLB);
+
+	if (asid != addressSpace) {
+	    addressSpace = asid;
+	    flushTranslationCache();
+	}
+    }
+
+    /**
+     * Return the current address space.
+     *
+     * @return	the ID of the current address space.
+     */
+    public int getAddressSpace() {
+	return addressSpace;
+    }
+
     /**
      * Return the number of pages of physical memory attached to this simulated
      * processor.
@@ -294,7 +404,7 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -308,6 +418,18 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// a hit in the translation cache needs no TLB search, and no bits set
+	if (usingTLB) {
+	    int slot = vpn & (translationCacheSize-1);
+	    if (cachedVPNs[slot] == vpn && (!writing || cachedWritable[slot])) {
+		int paddr = cachedBases[slot] + offset;
+
+		if (traceMemory)
+		    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	    }
+	}
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -325,7 +447,8 @@ public final class Processor {
 	// else, look through all TLB entries for matching vpn
 	else {
 	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+		if (translations[i].valid && translations[i].vpn == vpn &&
+		    translations[i].asid == addressSpace) {
 		    entry = translations[i];
 		    break;
 		}
@@ -357,11 +480,39 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	// once used (and dirty, for a write) is set, later accesses can hit
+	if (usingTLB) {
+	    int slot = vpn & (translationCacheSize-1);
+	    cachedVPNs[slot] = vpn;
+	    cachedBases[slot] = ppn*pageSize;
+	    cachedWritable[slot] = entry.dirty && !entry.readOnly;
+	}
+
+	if (traceMemory)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Forget the cached translation for the specified virtual page, if there
+     * is one.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void invalidateTranslation(int vpn) {
+	int slot = vpn & (translationCacheSize-1);
+	if (cachedVPNs[slot] == vpn)
+	    cachedVPNs[slot] = -1;
+    }
+
+    /**
+     * Forget all cached translations.
+     */
+    private void flushTranslationCache() {
+	for (int i=0; i<translationCacheSize; i++)
+	    cachedVPNs[i] = -1;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -372,7 +523,7 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
@@ -381,7 +532,7 @@ public final class Processor {
 	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
 				   size);
 
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +550,20 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	int ppn = paddr / pageSize;
+	if (decodeCache[ppn] != null)
+	    invalidateDecoded(ppn);
     }
 
     /**
@@ -541,12 +697,29 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** The address space whose TLB entries are used for translation. */
+    private int addressSpace = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /**
+     * A direct-mapped cache of recent TLB translations, indexed by the low
+     * bits of the vpn. A slot is only filled after the TLB entry's used bit
+     * (and, if the slot allows writes, its dirty bit) has been set, and is
+     * invalidated whenever the TLB entry changes, so a hit has no effect the
+     * kernel could observe.
+     */
+    private static final int translationCacheSize = 64;
+    /** The vpn cached in each slot, or -1. */
+    private int[] cachedVPNs = new int[translationCacheSize];
+    /** The physical address of the start of each cached page. */
+    private int[] cachedBases = new int[translationCacheSize];
+    /** <tt>true</tt> if a slot's page may be written without a TLB search. */
+    private boolean[] cachedWritable = new boolean[translationCacheSize];
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -555,6 +728,14 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /** Decoded instructions, indexed by physical page and word offset. */
+    private DecodedInstruction[][] decodeCache;
+    /** <tt>true</tt> if any of the processor's debug flags are set. */
+    private boolean tracing;
+    /** <tt>true</tt> if memory accesses should be printed. */
+    private boolean traceMemory;
+    /** The JIT tier, or <tt>null</tt> if only the interpreter is used. */
+    private BlockTranslator translator;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -562,6 +743,7 @@ public final class Processor {
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgTranslate = 'j';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
@@ -614,75 +796,76 @@ public final class Processor {
 	    decode();
 	    execute();
 	    writeBack();
-	}	
+	}
+
+	/**
+	 * Same as <tt>run()</tt>, but print whatever the debug flags ask for.
+	 */
+	public void trace() throws MipsException {
+	    traceFetch();
+	    decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();
+
+	    execute();
+	    traceWriteBack();
+	}
 
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
 	private void fetch() throws MipsException {
+	    paddr = translate(registers[regPC], 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
+	}
+
+	private void traceFetch() throws MipsException {
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
 		Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    paddr = translate(registers[regPC], 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    DecodedInstruction decoded = lookupDecoded(paddr, value);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
-
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +876,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,9 +895,6 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
 	private void print() {
@@ -1032,6 +1207,16 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
+	    if (test(Mips.BRANCH) && branch) {
+		nextPC = jtarget;
+	    }
+
+	    advancePC(nextPC);
+	}
+
+	private void traceWriteBack() throws MipsException {
+	    writeBack();
+
 	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
 		if (Lib.test(dbgFullDisassemble)) {
 		    System.out.print("#0x" + Lib.toHexString((int) dst));
@@ -1040,19 +1225,13 @@ public final class Processor {
 		}
 	    }
 
-	    if (test(Mips.BRANCH) && branch) {
-		nextPC = jtarget;
-	    }
-
-	    advancePC(nextPC);
-
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
 		Lib.test(dbgFullDisassemble))
 		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1242,1071 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The superclass of the JVM classes generated by the block translator.
+     * Each subclass executes one basic block of MIPS code, keeping the
+     * registers it uses in local variables, and reaches memory through the
+     * methods of this class so that address translation and exceptions
+     * behave exactly as they do in the interpreter.
+     *
+     * <p>
+     * If an instruction in the block causes an exception, the generated code
+     * writes its registers back, records the index of the faulting
+     * instruction and any delayed load in progress, and rethrows the
+     * exception.
+     */
+    public static abstract class CompiledBlock {
+	/**
+	 * Allocate a new compiled block. Only called through reflection by
+	 * the block translator.
+	 */
+	protected CompiledBlock() {
+	}
+
+	/**
+	 * Execute this block.
+	 *
+	 * @param	registers	the processor's register file.
+	 */
+	protected abstract void run(int[] registers) throws MipsException;
+
+	/**
+	 * Read <i>size</i> bytes of virtual memory at <i>vaddr</i>.
+	 */
+	protected final int load(int vaddr, int size) throws MipsException {
+	    return processor.readMem(vaddr, size);
+	}
+
+	/**
+	 * Write <i>size</i> bytes of <i>value</i> to virtual memory at
+	 * <i>vaddr</i>.
+	 */
+	protected final void store(int vaddr, int size, int value)
+	    throws MipsException {
+	    processor.writeMem(vaddr, size, value);
+	}
+
+	/**
+	 * Raise a syscall exception.
+	 */
+	protected final void syscall() throws MipsException {
+	    throw processor.new MipsException(exceptionSyscall);
+	}
+
+	/** The index of the instruction that caused an exception. */
+	protected int faultIndex;
+	/** The PC at which execution continues after this block. */
+	protected int exitPC;
+	/** The value of the delayed load in progress on exit. */
+	protected int pendingValue;
+	/** The mask of the delayed load in progress on exit. */
+	protected int pendingMask;
+
+	private Processor processor;
+    }
+
+    /**
+     * The optional JIT tier, enabled by the <tt>Processor.jit</tt> key.
+     * Counts how often each basic block is entered, and once a block is hot
+     * translates it into a JVM class whose bytecode HotSpot can compile
+     * directly. A basic block runs up to and including the delay slot of its
+     * first branch, and stops early at syscalls, page boundaries, and any
+     * instruction the translator does not handle.
+     *
+     * <p>
+     * A block is only run when no interrupt can become due before its last
+     * instruction, so simulated time is advanced in one step afterwards.
+     * Otherwise, and whenever a delayed load is in progress on entry, the
+     * interpreter executes the next instruction instead.
+     */
+    private class BlockTranslator {
+	BlockTranslator() {
+	    blocks = new TranslatedBlock[numPhysPages][];
+	}
+
+	/**
+	 * Start executing instructions at the current PC, using translated
+	 * blocks where possible. Never returns.
+	 *
+	 * @param	inst	the interpreter to fall back on.
+	 */
+	void run(Instruction inst) {
+	    boolean blockStart = true, delaySlot = false;
+	    
+	    while (true) {
+		try {
+		    if (!blockStart || !runBlock()) {
+			inst.run();
+			blockStart = delaySlot;
+			delaySlot = Lib.test(Mips.BRANCH, inst.flags);
+		    }
+		}
+		catch (MipsException e) {
+		    blockStart = true;
+		    delaySlot = false;
+		    e.handle();
+		}
+
+		privilege.interrupt.tick(false);
+	    }
+	}
+
+	/**
+	 * Run the translated block at the current PC, if there is one. On
+	 * success, leaves the final tick of the block to the caller.
+	 *
+	 * @return	<tt>true</tt> if a block was run.
+	 */
+	private boolean runBlock() throws MipsException {
+	    if (loadTarget != 0 || registers[regNextPC] != registers[regPC]+4)
+		return false;
+
+	    int pc = registers[regPC];
+	    TranslatedBlock block = lookup(pc, translate(pc, 4, false));
+	    if (block == null)
+		return false;
+
+	    int length = block.words.length;
+	    long available = privilege.interrupt.nextInterruptTime() -
+		privilege.stats.totalTicks;
+	    if (available <= (long) (length-1) * Stats.UserTick)
+		return false;
+
+	    CompiledBlock code = block.code;
+	    try {
+		code.run(registers);
+	    }
+	    catch (MipsException e) {
+		int index = code.faultIndex;
+
+		registers[regPC] = pc + index*4;
+		if (index == block.branchIndex+1 && block.branchIndex != -1)
+		    registers[regNextPC] = code.exitPC;
+		else
+		    registers[regNextPC] = registers[regPC]+4;
+
+		loadTarget = block.pendingTargets[index];
+		loadValue = code.pendingValue;
+		loadMask = code.pendingMask;
+
+		privilege.interrupt.skipUserTicks(index);
+		throw e;
+	    }
+
+	    registers[regPC] = code.exitPC;
+	    registers[regNextPC] = code.exitPC+4;
+
+	    loadTarget = block.pendingTargets[length];
+	    loadValue = code.pendingValue;
+	    loadMask = code.pendingMask;
+
+	    privilege.interrupt.skipUserTicks(length-1);
+	    return true;
+	}
+
+	/**
+	 * Find the translated block starting at the specified address,
+	 * translating it if it has become hot.
+	 *
+	 * @param	vaddr	the virtual address of the block.
+	 * @param	paddr	the physical address of the block.
+	 * @return	the block, or <tt>null</tt> if there is no translation.
+	 */
+	private TranslatedBlock lookup(int vaddr, int paddr) {
+	    int ppn = paddr / pageSize;
+	    int index = (paddr % pageSize) / 4;
+
+	    TranslatedBlock[] page = blocks[ppn];
+	    if (page == null) {
+		page = new TranslatedBlock[pageSize / 4];
+		blocks[ppn] = page;
+	    }
+
+	    TranslatedBlock block = page[index];
+	    if (block == null || block.vaddr != vaddr ||
+		(block.words != null && !block.matches(mainMemory, paddr))) {
+		block = new TranslatedBlock(vaddr);
+		page[index] = block;
+	    }
+
+	    if (block.code == null) {
+		// already found to be untranslatable, or not hot yet
+		if (block.words != null || ++block.count < compileThreshold)
+		    return null;
+
+		translateBlock(block, paddr);
+		if (block.code == null)
+		    return null;
+	    }
+
+	    return block;
+	}
+
+	/**
+	 * Scan the instructions of a block and generate a class for them.
+	 *
+	 * @param	block	the block to translate.
+	 * @param	paddr	the physical address of the block.
+	 */
+	private void translateBlock(TranslatedBlock block, int paddr) {
+	    DecodedInstruction[] insts = new DecodedInstruction[maxBlockLength];
+	    int length = 0;
+	    int pageEnd = (paddr / pageSize + 1) * pageSize;
+	    
+	    while (length < maxBlockLength && paddr+length*4 < pageEnd) {
+		DecodedInstruction inst = decodeAt(paddr+length*4);
+		if (!isTranslatable(inst))
+		    break;
+
+		if (Lib.test(Mips.BRANCH, inst.flags)) {
+		    // the delay slot must come along, and must be simple
+		    if (length+1 >= maxBlockLength ||
+			paddr+(length+1)*4 >= pageEnd)
+			break;
+
+		    DecodedInstruction slot = decodeAt(paddr+(length+1)*4);
+		    if (!isTranslatable(slot) ||
+			Lib.test(Mips.BRANCH, slot.flags) ||
+			slot.operation == Mips.SYSCALL)
+			break;
+
+		    block.branchIndex = length;
+		    insts[length++] = inst;
+		    insts[length++] = slot;
+		    break;
+		}
+
+		insts[length++] = inst;
+		if (inst.operation == Mips.SYSCALL)
+		    break;
+	    }
+
+	    block.words = new int[Math.max(length, 1)];
+	    for (int i=0; i<block.words.length; i++)
+		block.words[i] = Lib.bytesToInt(mainMemory, paddr+i*4);
+
+	    if (length == 0)
+		return;
+
+	    final byte[] classFile = generate(block, insts, length);
+	    final String className = "nachos.machine.Processor$Block" +
+		numBlocksTranslated++;
+	    
+	    block.code = (CompiledBlock) privilege.doPrivileged(
+		new PrivilegedAction<CompiledBlock>() {
+		    public CompiledBlock run() {
+			return defineBlock(className, classFile);
+		    }
+		});
+	    block.code.processor = Processor.this;
+	    
+	    Lib.debug(dbgTranslate, "translated " + length +
+		      " instructions at 0x" + Lib.toHexString(block.vaddr));
+	}
+
+	private CompiledBlock defineBlock(String className, byte[] classFile) {
+	    if (loader == null)
+		loader = new BlockLoader(Processor.class.getClassLoader());
+
+	    try {
+		return (CompiledBlock)
+		    loader.define(className, classFile).newInstance();
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not load " + className + ": " + e);
+		return null;
+	    }
+	}
+
+	private DecodedInstruction decodeAt(int paddr) {
+	    return lookupDecoded(paddr, Lib.bytesToInt(mainMemory, paddr));
+	}
+
+	/**
+	 * Test whether the translator handles an instruction. Instructions
+	 * that can overflow, division, and invalid instructions are left to
+	 * the interpreter.
+	 */
+	private boolean isTranslatable(DecodedInstruction inst) {
+	    switch (inst.operation) {
+	    case Mips.INVALID:
+	    case Mips.UNIMPL:
+	    case Mips.DIV:
+		return false;
+	    default:
+		return !Lib.test(Mips.OVERFLOW, inst.flags);
+	    }
+	}
+
+	/**
+	 * Generate the class file for a block. The generated
+	 * <tt>run()</tt> method loads every register the block uses into a
+	 * local, executes the instructions in order, and stores every register
+	 * the block writes back into the register file, both on a normal exit
+	 * and from a catch-all exception handler around the body.
+	 */
+	private byte[] generate(TranslatedBlock block,
+				DecodedInstruction[] insts, int length) {
+	    String className = "nachos/machine/Processor$Block" +
+		numBlocksTranslated;
+	    String superName = "nachos/machine/Processor$CompiledBlock";
+
+	    ClassFileWriter writer = new ClassFileWriter(className, superName);
+
+	    ClassFileWriter.Code init = new ClassFileWriter.Code(1, 1);
+	    init.op(ClassFileWriter.ALOAD_0);
+	    init.op2(ClassFileWriter.INVOKESPECIAL,
+		     writer.methodConstant(superName, "<init>", "()V"));
+	    init.op(ClassFileWriter.RETURN);
+	    writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", init);
+
+	    new BlockGenerator(writer, superName, block, insts, length)
+		.generate();
+
+	    return writer.toByteArray();
+	}
+
+	private TranslatedBlock[][] blocks;
+	private BlockLoader loader = null;
+	private int numBlocksTranslated = 0;
+
+	private static final int compileThreshold = 32;
+	private static final int maxBlockLength = 64;
+    }
+
+    /**
+     * Emits the <tt>run()</tt> method of a translated block. Each
+     * instruction is translated to mirror <tt>Instruction.execute()</tt> and
+     * <tt>Instruction.writeBack()</tt> exactly, including the order in which
+     * delayed loads complete.
+     */
+    private static class BlockGenerator {
+	BlockGenerator(ClassFileWriter writer, String superName,
+		       TranslatedBlock block, DecodedInstruction[] insts,
+		       int length) {
+	    this.writer = writer;
+	    this.superName = superName;
+	    this.block = block;
+	    this.insts = insts;
+	    this.length = length;
+
+	    code = new ClassFileWriter.Code(maxStack, numLocals);
+	}
+
+	void generate() {
+	    findRegisters();
+
+	    // load registers, and initialize every other local so that they
+	    // are all defined in the exception handler
+	    for (int i=1; i<numRegisters; i++) {
+		if (used[i]) {
+		    code.op(ClassFileWriter.ALOAD_1);
+		    code.iconst(writer, i);
+		    code.op(ClassFileWriter.IALOAD);
+		    code.istore(local(i));
+		}
+	    }
+	    for (int i=localIndex; i<numLocals; i++) {
+		code.op(ClassFileWriter.ICONST_0);
+		code.istore(i);
+	    }
+	    code.op(ClassFileWriter.ICONST_M1);
+	    code.istore(localPendingMask);
+
+	    ClassFileWriter.Label start = new ClassFileWriter.Label();
+	    ClassFileWriter.Label end = new ClassFileWriter.Label();
+	    ClassFileWriter.Label handler = new ClassFileWriter.Label();
+
+	    code.mark(start);
+
+	    block.pendingTargets = new int[length+1];
+	    int pendingTarget = 0;
+	    
+	    for (int k=0; k<length; k++) {
+		block.pendingTargets[k] = pendingTarget;
+		pendingTarget = instruction(k, pendingTarget);
+	    }
+	    block.pendingTargets[length] = pendingTarget;
+
+	    code.mark(end);
+
+	    // normal exit
+	    writeBackRegisters();
+	    if (block.branchIndex != -1)
+		setField("exitPC", localBranchTarget);
+	    else
+		setConstantField("exitPC", block.vaddr + length*4);
+	    setField("pendingValue", localPendingValue);
+	    setField("pendingMask", localPendingMask);
+	    code.op(ClassFileWriter.RETURN);
+
+	    // exception exit
+	    code.mark(handler);
+	    writeBackRegisters();
+	    setField("faultIndex", localIndex);
+	    setField("exitPC", localBranchTarget);
+	    setField("pendingValue", localPendingValue);
+	    setField("pendingMask", localPendingMask);
+	    code.op(ClassFileWriter.ATHROW);
+
+	    code.handler(start, end, handler);
+
+	    writer.addMethod(ClassFileWriter.ACC_PUBLIC, "run", "([I)V", code);
+	}
+
+	private void findRegisters() {
+	    for (int k=0; k<length; k++) {
+		DecodedInstruction inst = insts[k];
+
+		used[inst.rs] = used[inst.rt] = true;
+
+		switch (inst.operation) {
+		case Mips.MULT:
+		case Mips.MTLO:
+		case Mips.MTHI:
+		    used[regLo] = written[regLo] = true;
+		    used[regHi] = written[regHi] = true;
+		    break;
+		case Mips.MFLO:
+		case Mips.MFHI:
+		    used[regLo] = used[regHi] = true;
+		    break;
+		}
+
+		if (Lib.test(Mips.DST, inst.flags) ||
+		    Lib.test(Mips.DELAYEDLOAD, inst.flags)) {
+		    if (inst.dstReg > 0)
+			used[inst.dstReg] = written[inst.dstReg] = true;
+		}
+	    }
+
+	    used[0] = written[0] = false;
+	}
+
+	/**
+	 * Emit one instruction.
+	 *
+	 * @param	k		the index of the instruction in the block.
+	 * @param	pendingTarget	the target of the delayed load started by
+	 *				the previous instruction, or 0.
+	 * @return	the target of the delayed load started by this
+	 *		instruction, or 0.
+	 */
+	private int instruction(int k, int pendingTarget) {
+	    DecodedInstruction inst = insts[k];
+	    int pc = block.vaddr + k*4;
+	    boolean delayedLoad = Lib.test(Mips.DELAYEDLOAD, inst.flags);
+
+	    switch (inst.operation) {
+	    case Mips.LOAD:
+	    case Mips.LWL:
+	    case Mips.LWR:
+	    case Mips.STORE:
+	    case Mips.SWL:
+	    case Mips.SWR:
+	    case Mips.SYSCALL:
+		code.iconst(writer, k);
+		code.istore(localIndex);
+		break;
+	    }
+
+	    execute(inst, pc);
+
+	    // complete the previous delayed load
+	    if (pendingTarget != 0)
+		finishLoad(pendingTarget);
+
+	    // and schedule the next
+	    if (delayedLoad && inst.dstReg != 0) {
+		code.iload(localValue);
+		code.istore(localPendingValue);
+		code.iload(localMask);
+		code.istore(localPendingMask);
+	    }
+
+	    if (Lib.test(Mips.DST, inst.flags) && inst.dstReg != 0) {
+		if (Lib.test(Mips.LINK, inst.flags))
+		    code.iconst(writer, pc+8);
+		else
+		    code.iload(localValue);
+		code.istore(local(inst.dstReg));
+	    }
+
+	    return delayedLoad ? inst.dstReg : 0;
+	}
+
+	/**
+	 * Emit the execute stage of an instruction, leaving the value to be
+	 * written back in <tt>localValue</tt>, and the mask of a delayed load
+	 * in <tt>localMask</tt>.
+	 */
+	private void execute(DecodedInstruction inst, int pc) {
+	    boolean unsigned = Lib.test(Mips.UNSIGNED, inst.flags);
+	    ClassFileWriter.Label taken, done;
+
+	    switch (inst.operation) {
+	    case Mips.ADD:
+		src1(inst);
+		src2(inst);
+		code.op(ClassFileWriter.IADD);
+		code.istore(localValue);
+		break;
+	    case Mips.SUB:
+		src1(inst);
+		src2(inst);
+		code.op(ClassFileWriter.ISUB);
+		code.istore(localValue);
+		break;
+	    case Mips.MULT:
+		src1(inst);
+		widen(unsigned);
+		src2(inst);
+		widen(unsigned);
+		code.op(ClassFileWriter.LMUL);
+		code.op(ClassFileWriter.DUP2);
+		code.op(ClassFileWriter.L2I);
+		code.istore(local(regLo));
+		code.iconst(writer, 32);
+		code.op(ClassFileWriter.LSHR);
+		code.op(ClassFileWriter.L2I);
+		code.istore(local(regHi));
+		break;
+
+	    case Mips.SLL:
+		src2(inst);
+		src1(inst);
+		code.op(ClassFileWriter.ISHL);
+		code.istore(localValue);
+		break;
+	    case Mips.SRA:
+	    case Mips.SRL:
+		// the interpreter shifts the sign-extended long value, so
+		// SRL also shifts in copies of the sign bit
+		src2(inst);
+		src1(inst);
+		code.op(ClassFileWriter.ISHR);
+		code.istore(localValue);
+		break;
+
+	    case Mips.SLT:
+		src1(inst);
+		if (unsigned)
+		    flipSign();
+		src2(inst);
+		if (unsigned)
+		    flipSign();
+		taken = new ClassFileWriter.Label();
+		done = new ClassFileWriter.Label();
+		code.jump(ClassFileWriter.IF_ICMPLT, taken);
+		code.op(ClassFileWriter.ICONST_0);
+		code.jump(ClassFileWriter.GOTO, done);
+		code.mark(taken);
+		code.op(ClassFileWriter.ICONST_0 + 1);
+		code.mark(done);
+		code.istore(localValue);
+		break;
+
+	    case Mips.AND:
+		src1(inst);
+		src2(inst);
+		code.op(ClassFileWriter.IAND);
+		code.istore(localValue);
+		break;
+	    case Mips.OR:
+		src1(inst);
+		src2(inst);
+		code.op(ClassFileWriter.IOR);
+		code.istore(localValue);
+		break;
+	    case Mips.NOR:
+		src1(inst);
+		src2(inst);
+		code.op(ClassFileWriter.IOR);
+		code.op(ClassFileWriter.ICONST_M1);
+		code.op(ClassFileWriter.IXOR);
+		code.istore(localValue);
+		break;
+	    case Mips.XOR:
+		src1(inst);
+		src2(inst);
+		code.op(ClassFileWriter.IXOR);
+		code.istore(localValue);
+		break;
+	    case Mips.LUI:
+		code.iconst(writer, inst.imm << 16);
+		code.istore(localValue);
+		break;
+
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BGEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLEZ:
+	    case Mips.BLTZ:
+		taken = new ClassFileWriter.Label();
+		done = new ClassFileWriter.Label();
+		register(inst.rs);
+		switch (inst.operation) {
+		case Mips.BEQ:
+		    register(inst.rt);
+		    code.jump(ClassFileWriter.IF_ICMPEQ, taken);
+		    break;
+		case Mips.BNE:
+		    register(inst.rt);
+		    code.jump(ClassFileWriter.IF_ICMPNE, taken);
+		    break;
+		case Mips.BGEZ:
+		    code.jump(ClassFileWriter.IFGE, taken);
+		    break;
+		case Mips.BGTZ:
+		    code.jump(ClassFileWriter.IFGT, taken);
+		    break;
+		case Mips.BLEZ:
+		    code.jump(ClassFileWriter.IFLE, taken);
+		    break;
+		case Mips.BLTZ:
+		    code.jump(ClassFileWriter.IFLT, taken);
+		    break;
+		}
+		code.iconst(writer, pc+8);
+		code.istore(localBranchTarget);
+		code.jump(ClassFileWriter.GOTO, done);
+		code.mark(taken);
+		jumpTarget(inst, pc);
+		code.istore(localBranchTarget);
+		code.mark(done);
+		break;
+
+	    case Mips.JUMP:
+		jumpTarget(inst, pc);
+		code.istore(localBranchTarget);
+		break;
+
+	    case Mips.MFLO:
+		register(regLo);
+		code.istore(localValue);
+		break;
+	    case Mips.MFHI:
+		register(regHi);
+		code.istore(localValue);
+		break;
+	    case Mips.MTLO:
+		register(inst.rs);
+		code.istore(local(regLo));
+		break;
+	    case Mips.MTHI:
+		register(inst.rs);
+		code.istore(local(regHi));
+		break;
+
+	    case Mips.SYSCALL:
+		code.op(ClassFileWriter.ALOAD_0);
+		invoke("syscall", "()V");
+		break;
+
+	    case Mips.LOAD:
+		code.op(ClassFileWriter.ALOAD_0);
+		address(inst);
+		code.iconst(writer, inst.size);
+		invoke("load", "(II)I");
+		code.istore(localValue);
+		code.op(ClassFileWriter.ICONST_M1);
+		code.istore(localMask);
+		break;
+
+	    case Mips.LWL:
+	    case Mips.LWR:
+		address(inst);
+		code.istore(localAddress);
+		loadWord();
+
+		// number of bits to preserve
+		shiftAmount(inst.operation == Mips.LWL);
+		
+		// LWL shifts the input left so the addressed byte is highest,
+		// LWR shifts it right so the addressed byte is lowest
+		int shift = (inst.operation == Mips.LWL) ?
+		    ClassFileWriter.ISHL : ClassFileWriter.IUSHR;
+		
+		code.op(ClassFileWriter.ICONST_M1);
+		code.iload(localShift);
+		code.op(shift);
+		code.istore(localMask);
+
+		code.iload(localValue);
+		code.iload(localShift);
+		code.op(shift);
+		code.istore(localValue);
+		break;
+
+	    case Mips.STORE:
+		code.op(ClassFileWriter.ALOAD_0);
+		address(inst);
+		code.iconst(writer, inst.size);
+		register(inst.rt);
+		invoke("store", "(III)V");
+		break;
+
+	    case Mips.SWL:
+	    case Mips.SWR:
+		address(inst);
+		code.istore(localAddress);
+		loadWord();
+
+		shiftAmount(inst.operation == Mips.SWL);
+
+		// SWL shifts the highest order byte into the addressed
+		// position, SWR the lowest order byte; like SRL, SWL shifts
+		// in copies of the sign bit
+		code.op(ClassFileWriter.ICONST_M1);
+		code.iload(localShift);
+		code.op(inst.operation == Mips.SWL ?
+			ClassFileWriter.IUSHR : ClassFileWriter.ISHL);
+		code.istore(localMask);
+
+		code.op(ClassFileWriter.ALOAD_0);
+		code.iload(localAddress);
+		code.iconst(writer, ~0x3);
+		code.op(ClassFileWriter.IAND);
+		code.iconst(writer, 4);
+
+		// merge values
+		register(inst.rt);
+		code.iload(localShift);
+		code.op(inst.operation == Mips.SWL ?
+			ClassFileWriter.ISHR : ClassFileWriter.ISHL);
+		code.iload(localMask);
+		code.op(ClassFileWriter.IAND);
+		code.iload(localValue);
+		code.iload(localMask);
+		code.op(ClassFileWriter.ICONST_M1);
+		code.op(ClassFileWriter.IXOR);
+		code.op(ClassFileWriter.IAND);
+		code.op(ClassFileWriter.IOR);
+
+		invoke("store", "(III)V");
+		break;
+
+	    default:
+		Lib.assertNotReached();
+	    }
+	}
+
+	/** Push the value of a register. */
+	private void register(int number) {
+	    if (number == 0)
+		code.op(ClassFileWriter.ICONST_0);
+	    else
+		code.iload(local(number));
+	}
+
+	private void src1(DecodedInstruction inst) {
+	    if (Lib.test(Mips.SRC1SH, inst.flags))
+		code.iconst(writer, inst.sh);
+	    else
+		register(inst.rs);
+	}
+
+	private void src2(DecodedInstruction inst) {
+	    if (Lib.test(Mips.SRC2IMM, inst.flags))
+		code.iconst(writer, inst.imm);
+	    else
+		register(inst.rt);
+	}
+
+	/** Convert the int on the stack to a long. */
+	private void widen(boolean unsigned) {
+	    code.op(ClassFileWriter.I2L);
+	    if (unsigned) {
+		code.op2(ClassFileWriter.LDC2_W, writer.longConstant(0xFFFFFFFFL));
+		code.op(ClassFileWriter.LAND);
+	    }
+	}
+
+	/** Bias the int on the stack so a signed compare is unsigned. */
+	private void flipSign() {
+	    code.iconst(writer, Integer.MIN_VALUE);
+	    code.op(ClassFileWriter.IXOR);
+	}
+
+	private void address(DecodedInstruction inst) {
+	    register(inst.rs);
+	    code.iconst(writer, inst.imm);
+	    code.op(ClassFileWriter.IADD);
+	}
+
+	private void jumpTarget(DecodedInstruction inst, int pc) {
+	    if (inst.format == Mips.RFMT)
+		register(inst.rs);
+	    else if (inst.format == Mips.IFMT)
+		code.iconst(writer, pc+4 + (inst.imm<<2));
+	    else
+		code.iconst(writer, ((pc+4)&0xF0000000) | (inst.target<<2));
+	}
+
+	/** Load the aligned word containing <tt>localAddress</tt>. */
+	private void loadWord() {
+	    code.op(ClassFileWriter.ALOAD_0);
+	    code.iload(localAddress);
+	    code.iconst(writer, ~0x3);
+	    code.op(ClassFileWriter.IAND);
+	    code.iconst(writer, 4);
+	    invoke("load", "(II)I");
+	    code.istore(localValue);
+	}
+
+	/**
+	 * Compute the number of bits to preserve for an unaligned access,
+	 * <tt>(3-(addr&0x3))*8</tt> for the left variants and
+	 * <tt>(addr&0x3)*8</tt> for the right variants.
+	 */
+	private void shiftAmount(boolean left) {
+	    if (left)
+		code.iconst(writer, 3);
+	    code.iload(localAddress);
+	    code.iconst(writer, 3);
+	    code.op(ClassFileWriter.IAND);
+	    if (left)
+		code.op(ClassFileWriter.ISUB);
+	    code.iconst(writer, 3);
+	    code.op(ClassFileWriter.ISHL);
+	    code.istore(localShift);
+	}
+
+	/** Complete the delayed load into <i>target</i>. */
+	private void finishLoad(int target) {
+	    code.iload(local(target));
+	    code.iload(localPendingMask);
+	    code.op(ClassFileWriter.ICONST_M1);
+	    code.op(ClassFileWriter.IXOR);
+	    code.op(ClassFileWriter.IAND);
+	    code.iload(localPendingValue);
+	    code.iload(localPendingMask);
+	    code.op(ClassFileWriter.IAND);
+	    code.op(ClassFileWriter.IOR);
+	    code.istore(local(target));
+	}
+
+	private void invoke(String name, String desc) {
+	    code.op2(ClassFileWriter.INVOKEVIRTUAL,
+		     writer.methodConstant(superName, name, desc));
+	}
+
+	private void setField(String name, int local) {
+	    code.op(ClassFileWriter.ALOAD_0);
+	    code.iload(local);
+	    code.op2(ClassFileWriter.PUTFIELD,
+		     writer.fieldConstant(superName, name, "I"));
+	}
+
+	private void setConstantField(String name, int value) {
+	    code.op(ClassFileWriter.ALOAD_0);
+	    code.iconst(writer, value);
+	    code.op2(ClassFileWriter.PUTFIELD,
+		     writer.fieldConstant(superName, name, "I"));
+	}
+
+	private void writeBackRegisters() {
+	    for (int i=1; i<numRegisters; i++) {
+		if (written[i]) {
+		    code.op(ClassFileWriter.ALOAD_1);
+		    code.iconst(writer, i);
+		    code.iload(local(i));
+		    code.op(ClassFileWriter.IASTORE);
+		}
+	    }
+	}
+
+	private static int local(int register) {
+	    return 2 + register;
+	}
+
+	private ClassFileWriter writer;
+	private String superName;
+	private ClassFileWriter.Code code;
+	private TranslatedBlock block;
+	private DecodedInstruction[] insts;
+	private int length;
+
+	/** Registers 0 through <tt>regHi</tt> can be kept in locals. */
+	private static final int numRegisters = regHi+1;
+	private boolean[] used = new boolean[numRegisters];
+	private boolean[] written = new boolean[numRegisters];
+
+	// local 0 is this, local 1 is the register file, then the registers
+	private static final int
+	    localIndex = 2 + numRegisters,
+	    localPendingValue = localIndex + 1,
+	    localPendingMask = localIndex + 2,
+	    localBranchTarget = localIndex + 3,
+	    localValue = localIndex + 4,
+	    localMask = localIndex + 5,
+	    localAddress = localIndex + 6,
+	    localShift = localIndex + 7,
+	    numLocals = localIndex + 8;
+
+	private static final int maxStack = 8;
+    }
+
+    /**
+     * A basic block that has been seen by the translator, and its
+     * translation.
+     */
+    private static class TranslatedBlock {
+	TranslatedBlock(int vaddr) {
+	    this.vaddr = vaddr;
+	}
+
+	/**
+	 * Test whether memory at <i>paddr</i> still holds the instructions
+	 * this block was translated from.
+	 */
+	boolean matches(byte[] memory, int paddr) {
+	    for (int i=0; i<words.length; i++) {
+		if (Lib.bytesToInt(memory, paddr+i*4) != words[i])
+		    return false;
+	    }
+	    return true;
+	}
+
+	/** The virtual address of the first instruction. */
+	final int vaddr;
+	/** The number of times this block was entered before translation. */
+	int count = 0;
+	/** The instructions examined, or <tt>null</tt> if not yet scanned. */
+	int[] words = null;
+	/** The translation, or <tt>null</tt> if there is none. */
+	CompiledBlock code = null;
+	/** The index of the branch ending this block, or -1. */
+	int branchIndex = -1;
+	/**
+	 * The target of the delayed load in progress before each instruction,
+	 * and after the last one.
+	 */
+	int[] pendingTargets;
+    }
+
+    /**
+     * A class loader for translated blocks.
+     */
+    private static class BlockLoader extends ClassLoader {
+	BlockLoader(ClassLoader parent) {
+	    super(parent);
+	}
+
+	Class<?> define(String name, byte[] classFile) {
+	    return defineClass(name, classFile, 0, classFile.length);
+	}
+    }
+
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, which was
+     * fetched from physical address <i>paddr</i>. Decoded instructions are
+     * cached per physical page, and a cached entry is only reused if the word
+     * in memory still matches the word it was decoded from, so the kernel may
+     * safely overwrite memory through <tt>getMemory()</tt>.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction lookupDecoded(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize / 4];
+	    decodeCache[ppn] = page;
+	}
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard the decoded instructions cached for the specified physical
+     * page. Called when a user store modifies a page that has been executed.
+     *
+     * @param	ppn	the physical page that was written.
+     */
+    private void invalidateDecoded(int ppn) {
+	decodeCache[ppn] = null;
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any registers.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = Lib.extract(value, 0, 16);
+	    else
+		imm = Lib.extend(value, 0, 16);
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg;
+    }
+
     private static class Mips {
 	Mips() {
 	}
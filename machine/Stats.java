@@ -26,7 +26,8 @@ public final class Stats {
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+			   + ", TLB misses " + numTLBMisses
+			   + ", page hits " + numPageHits);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -57,6 +58,11 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The total number of TLB misses on pages that were already in memory,
+     * as reported by the kernel.
+     */
+    public int numPageHits = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -8,10 +8,20 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.security.PrivilegedAction;
+import java.util.LinkedHashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * Every <tt>OpenFile</tt> for the same host file shares one host descriptor,
+ * and at most <tt>StubFileSystem.maxHostFiles</tt> descriptors are kept open.
+ * When another is needed, the least recently used one is closed, preferring
+ * files that are no longer open, and is reopened on its next use. So there is
+ * no limit on the number of open files, only on the host descriptors behind
+ * them.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,6 +34,9 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	maxHostFiles = Config.getInteger("StubFileSystem.maxHostFiles", 16);
+	Lib.assertTrue(maxHostFiles > 0);
     }
     
     public OpenFile open(String name, boolean truncate) {
@@ -31,13 +44,12 @@ public class StubFileSystem implements FileSystem {
 	    return null;
 	
 	delay();
-	    
-	try {
-	    return new StubOpenFile(name, truncate);
-	}
-	catch (IOException e) {
+
+	HostFile host = getHostFile(name, truncate);
+	if (host == null)
 	    return null;
-	}
+
+	return new StubOpenFile(name, host);
     }
     
     public boolean remove(String name) {
@@ -46,8 +58,29 @@ public class StubFileSystem implements FileSystem {
 
 	delay();
 
-	FileRemover fr = new FileRemover(new File(directory, name));
+	File f = new File(directory, name);
+	String key = getKey(f);
+
+	// an open file keeps its descriptor, since it cannot be reopened
+	HostFile host = hostFiles.get(key);
+	if (host != null && host.refCount > 0) {
+	    try {
+		host.getFile();
+	    }
+	    catch (IOException e) {
+	    }
+	}
+
+	FileRemover fr = new FileRemover(f);
 	privilege.doPrivileged(fr);
+
+	if (fr.successful && host != null) {
+	    hostFiles.remove(key);
+	    host.removed = true;
+	    if (host.refCount == 0)
+		host.close();
+	}
+
 	return fr.successful;
     }
 
@@ -64,55 +97,195 @@ public class StubFileSystem implements FileSystem {
 	private File f;
     }
 
-    private void delay() {
+    void delay() {
 	long time = Machine.timer().getTime();
 	int amount = 1000;
 	ThreadedKernel.alarm.waitUntil(amount);
 	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
     }
 
-    private class StubOpenFile extends OpenFileWithPosition {
-	StubOpenFile(final String name, final boolean truncate)
-	    throws IOException {
-	    super(StubFileSystem.this, name);
+    /**
+     * Return the key of a host file in <tt>hostFiles</tt>: its canonical
+     * path, so that every name for the same file shares one descriptor.
+     */
+    private String getKey(final File f) {
+	return (String) privilege.doPrivileged(new PrivilegedAction<String>() {
+		public String run() {
+		    try {
+			return f.getCanonicalPath();
+		    }
+		    catch (IOException e) {
+			return f.getAbsolutePath();
+		    }
+		}
+	    });
+    }
 
-	    final File f = new File(directory, name);
+    /**
+     * Find the host file with the specified name, and add a reference to it.
+     * The file is created if <i>truncate</i> is set and it does not exist.
+     *
+     * @param	name		the name of the file.
+     * @param	truncate	<tt>true</tt> to truncate the file to zero
+     *				length, creating it if necessary.
+     * @return	the host file, or <tt>null</tt> if it does not exist or cannot
+     *		be opened.
+     */
+    HostFile getHostFile(final String name, final boolean truncate) {
+	final File f = new File(directory, name);
 
-	    if (openCount == maxOpenFiles)
+	String key = getKey(f);
+	HostFile host = hostFiles.get(key);
+
+	if (host == null) {
+	    Boolean exists = (Boolean) privilege.doPrivileged(
+		new PrivilegedAction<Boolean>() {
+		    public Boolean run() { return f.exists(); }
+		});
+	    if (!truncate && !exists)
+		return null;
+
+	    host = new HostFile(f, key);
+	    hostFiles.put(key, host);
+	}
+
+	try {
+	    RandomAccessFile file = host.getFile();
+
+	    if (truncate)
+		file.setLength(0);
+	}
+	catch (IOException e) {
+	    if (host.refCount == 0) {
+		hostFiles.remove(host.key);
+		host.close();
+	    }
+	    return null;
+	}
+
+	host.refCount++;
+	return host;
+    }
+
+    /**
+     * Make room for another host descriptor by closing the least recently
+     * used one, preferring files that are not open at all. Files that have
+     * been removed but are still open keep their descriptors, since they
+     * could not be reopened.
+     */
+    private void makeRoom() {
+	for (int pass=0; pass<2 && numHostFiles >= maxHostFiles; pass++) {
+	    for (HostFile host : hostFiles.values()) {
+		if (host.file != null && (pass == 1 || host.refCount == 0)) {
+		    host.close();
+
+		    if (host.refCount == 0)
+			hostFiles.remove(host.key);
+		    return;
+		}
+	    }
+	}
+    }
+
+    /**
+     * A file in the host's file system, shared by every <tt>OpenFile</tt>
+     * for it. Its host descriptor is opened when it is needed, and may be
+     * closed again to make room for another.
+     */
+    class HostFile {
+	HostFile(File f, String key) {
+	    this.f = f;
+	    this.key = key;
+	}
+
+	/**
+	 * Return the open host file, opening it if necessary.
+	 */
+	RandomAccessFile getFile() throws IOException {
+	    if (file == null && removed)
 		throw new IOException();
 
+	    if (file != null) {
+		// most recently used
+		if (!removed) {
+		    hostFiles.remove(key);
+		    hostFiles.put(key, this);
+		}
+		return file;
+	    }
+
+	    makeRoom();
+
 	    privilege.doPrivileged(new Runnable() {
-		public void run() { getRandomAccessFile(f, truncate); }
-	    });
+		    public void run() {
+			try {
+			    file = new RandomAccessFile(f, "rw");
+			}
+			catch (IOException e) {
+			}
+		    }
+		});
 
 	    if (file == null)
 		throw new IOException();
 
-	    open = true;
-	    openCount++;
+	    numHostFiles++;
+	    return file;
 	}
 
-	private void getRandomAccessFile(File f, boolean truncate) {
-	    try {
-		if (!truncate && !f.exists())
-		    return;
+	/**
+	 * Drop a reference to this file, closing it if it was removed.
+	 */
+	void release() {
+	    Lib.assertTrue(refCount > 0);
 
-		file = new RandomAccessFile(f, "rw");
+	    if (--refCount == 0 && removed)
+		close();
+	    else if (refCount == 0 && file == null)
+		hostFiles.remove(key);
+	}
+
+	/**
+	 * Close the host descriptor, if it is open.
+	 */
+	void close() {
+	    if (file == null)
+		return;
 
-		if (truncate)
-		    file.setLength(0);
+	    try {
+		file.close();
 	    }
 	    catch (IOException e) {
 	    }
+
+	    file = null;
+	    numHostFiles--;
+	}
+
+	final File f;
+	final String key;
+	RandomAccessFile file = null;
+	/** The number of <tt>OpenFile</tt>s using this file. */
+	int refCount = 0;
+	/** Set once the file is removed from the host's file system. */
+	boolean removed = false;
+    }
+
+    private class StubOpenFile extends OpenFileWithPosition {
+	StubOpenFile(String name, HostFile host) {
+	    super(StubFileSystem.this, name);
+
+	    this.host = host;
 	}
 
 	public int read(int pos, byte[] buf, int offset, int length) {
-	    if (!open)
+	    if (host == null)
 		return -1;
 	    
 	    try {
 		delay();
 
+		RandomAccessFile file = host.getFile();
 		file.seek(pos);
 		return Math.max(0, file.read(buf, offset, length));
 	    }
@@ -122,12 +295,13 @@ public class StubFileSystem implements FileSystem {
 	}
 	
 	public int write(int pos, byte[] buf, int offset, int length) {
-	    if (!open)
+	    if (host == null)
 		return -1;
 	    
 	    try {
 		delay();
 		
+		RandomAccessFile file = host.getFile();
 		file.seek(pos);
 		file.write(buf, offset, length);
 		return length;
@@ -138,8 +312,11 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	public int length() {
+	    if (host == null)
+		return -1;
+
 	    try {
-		return (int) file.length();
+		return (int) host.getFile().length();
 	    }
 	    catch (IOException e) {
 		return -1;
@@ -147,29 +324,30 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	public void close() {
-	    if (open) {
-		open = false;
-		openCount--;
-	    }
-		
-	    try {
-		file.close();
-	    }
-	    catch (IOException e) {
+	    if (host != null) {
+		host.release();
+		host = null;
 	    }
 	}
 
-	private RandomAccessFile file = null;
-	private boolean open = false;
+	private HostFile host;
     }
 
-    private int openCount = 0;
-    private static final int maxOpenFiles = 16;
+    /**
+     * The host files that are open or have an open descriptor, by canonical
+     * path, least recently used first.
+     */
+    private LinkedHashMap<String, HostFile> hostFiles =
+	new LinkedHashMap<String, HostFile>();
+    /** The number of open host descriptors. */
+    private int numHostFiles = 0;
+    /** The most host descriptors to keep open, unless removed files need more. */
+    private int maxHostFiles;
     
-    private Privilege privilege;
-    private File directory;
+    Privilege privilege;
+    File directory;
 
-    private static boolean checkName(String name) {
+    static boolean checkName(String name) {
 	char[] chars = name.toCharArray();
 
 	for (int i=0; i<chars.length; i++) {
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,13 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * By default, TCBs hand off the CPU by waiting on and notifying their
+ * monitors. If <tt>TCB.lightweight</tt> is set, they hand off with
+ * <tt>LockSupport.park()</tt>/<tt>unpark()</tt> instead, run on virtual
+ * threads if the JVM provides them, and may number up to
+ * <tt>TCB.maxThreads</tt> rather than <tt>maxThreads</tt>.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +49,15 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	lightweight = Config.getBoolean("TCB.lightweight", false);
+	if (lightweight) {
+	    threadLimit = Config.getInteger("TCB.maxThreads", 10000);
+	    virtualThreadBuilder = findVirtualThreadBuilder();
+	}
+	else {
+	    threadLimit = maxThreads;
+	}
     }
     
     /**
@@ -66,7 +84,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +112,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -104,8 +122,13 @@ public final class TCB {
 	     * it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    /* Starting the first virtual thread also creates its carrier
+	     * thread, so starting is privileged too.
+	     */
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { javaThread.start(); }
+		});
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -247,6 +270,15 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads are daemon threads, so the JVM would exit as
+	     * soon as the first TCB's thread returned. Keep it parked until
+	     * Nachos exits.
+	     */
+	    if (lightweight && isFirstTCB) {
+		while (true)
+		    LockSupport.park(this);
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -287,7 +319,17 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (lightweight) {
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitOnMonitor();
+	}
+    }
+
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -300,11 +342,58 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (lightweight) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    notifyMonitor();
+	}
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
 
+    /**
+     * Create the Java thread for a new TCB: a virtual thread if the
+     * lightweight backend is selected and the JVM supports them, and a
+     * platform thread otherwise.
+     */
+    private static Thread newThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) virtualThreadBuilder.invoke(
+		    Thread.class.getMethod("ofVirtual").invoke(null), target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+	
+	return new Thread(target);
+    }
+
+    /**
+     * Find <tt>Thread.Builder.unstarted(Runnable)</tt>, which only exists on
+     * JVMs with virtual threads.
+     *
+     * @return	the method, or <tt>null</tt> if virtual threads are not
+     *		available.
+     */
+    private static Method findVirtualThreadBuilder() {
+	try {
+	    Thread.class.getMethod("ofVirtual");
+	    return Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	}
+	catch (Exception e) {
+	    return null;
+	}
+    }
+
     private void associateThread(KThread thread) {
 	// make sure AutoGrader.runningThread() gets called only once per
 	// context switch
@@ -332,6 +421,17 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * <tt>true</tt> if TCBs hand off with <tt>LockSupport</tt> rather than
+     * monitors. Set from <tt>TCB.lightweight</tt> by
+     * <tt>givePrivilege()</tt>.
+     */
+    private static boolean lightweight = false;
+    /** The limit actually enforced on the number of running TCBs. */
+    private static int threadLimit = maxThreads;
+    /** <tt>Thread.Builder.unstarted()</tt>, if virtual threads are used. */
+    private static Method virtualThreadBuilder = null;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +454,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -388,7 +488,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -78,4 +79,12 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space this entry belongs to. A TLB entry only translates
+     * addresses while the processor's current address space, set by
+     * <tt>Processor.setAddressSpace()</tt>, has the same ID. Ignored when
+     * there is no TLB.
+     */
+    public int asid = 0;
 }
@@ -178,8 +178,9 @@ public class NachosSecurityManager extends SecurityManager {
 	
 	// some permissions are strictly forbidden
 	if (perm instanceof RuntimePermission) {
-	    // no creating class loaders
-	    if (name.equals("createClassLoader"))
+	    // no creating class loaders, except by the machine's translator
+	    if (name.equals("createClassLoader") &&
+		privileged != Thread.currentThread())
 		no(perm);
 	}
 	
@@ -304,15 +305,38 @@ public class NachosSecurityManager extends SecurityManager {
      * @param	perm	the permission being checked.
      */
     public void verifyPrivilege(Permission perm) {
-	if (!isPrivileged())
+	if (!isPrivileged() && !isCreatingCarrier())
 	    no(perm);
     }
 
+    /**
+     * Test whether the JVM is creating a carrier thread for virtual threads.
+     * The virtual thread scheduler adds carriers whenever one of its threads
+     * blocks, which can happen inside any Nachos thread using the lightweight
+     * <tt>TCB</tt> backend, so whatever the JVM checks while constructing
+     * one is allowed without privilege.
+     *
+     * @return	<tt>true</tt> if a carrier thread is being constructed.
+     */
+    private boolean isCreatingCarrier() {
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+	for (int i=0; i<trace.length; i++) {
+	    if (trace[i].getClassName().equals(carrierThreadClass) &&
+		trace[i].getMethodName().equals("<init>"))
+		return true;
+	}
+
+	return false;
+    }
+
     private File testDirectory;
     private boolean fullySecure;
 
     private Thread privileged = null;
     private int privilegeCount = 0;
     
+    private static final String carrierThreadClass =
+	"jdk.internal.misc.CarrierThread";
+
     private static final char dbgSecurity = 'S';
 }
@@ -158,6 +158,23 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the time at which the next pending interrupt will occur.
+	 *
+	 * @return	the time of the next interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if none is pending.
+	 */
+	public long nextInterruptTime();
+
+	/**
+	 * Advance the simulated time by several user ticks at once, without
+	 * checking for interrupts. The caller must ensure that no interrupt
+	 * becomes due in the skipped ticks.
+	 *
+	 * @param	count	the number of user ticks to skip.
+	 */
+	public void skipUserTicks(int count);
     }
 
     /**
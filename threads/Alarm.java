@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.PriorityQueue;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
@@ -22,11 +24,17 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every
+     * sleeping thread whose time has come, then causes the current thread to
+     * yield, forcing a context switch if there is another thread that should
+     * be run.
      */
     public void timerInterrupt() {
+	long time = Machine.timer().getTime();
+
+	while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= time)
+	    sleepers.poll().thread.ready();
+	
 	KThread.currentThread().yield();
     }
 
@@ -45,9 +53,44 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
+	if (x <= 0)
+	    return;
+	
+	boolean intStatus = Machine.interrupt().disable();
+
 	long wakeTime = Machine.timer().getTime() + x;
-	while (wakeTime > Machine.timer().getTime())
-	    KThread.yield();
+	sleepers.add(new Sleeper(wakeTime, KThread.currentThread()));
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
     }
+
+    /**
+     * A thread waiting in <tt>waitUntil()</tt>. Sleepers with the same wake
+     * time are woken in the order they went to sleep.
+     */
+    private class Sleeper implements Comparable<Sleeper> {
+	Sleeper(long wakeTime, KThread thread) {
+	    this.wakeTime = wakeTime;
+	    this.thread = thread;
+	    this.id = numSleepersCreated++;
+	}
+
+	public int compareTo(Sleeper sleeper) {
+	    if (wakeTime != sleeper.wakeTime)
+		return (wakeTime < sleeper.wakeTime) ? -1 : 1;
+	    else
+		return (id < sleeper.id) ? -1 : (id > sleeper.id) ? 1 : 0;
+	}
+
+	long wakeTime;
+	KThread thread;
+	
+	private long id;
+    }
+
+    private long numSleepersCreated = 0;
+    
+    /** Sleeping threads, earliest wake time first. */
+    private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
 }
@@ -0,0 +1,736 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * A buffer cache in front of another file system. Files are divided into
+ * fixed-size blocks, and the most recently used blocks are kept in memory,
+ * so that small reads and writes do not each pay for an access to the
+ * underlying file system.
+ *
+ * <p>
+ * Writes within a file are only copied into the cache. A dirty block is
+ * written back when it is evicted, and every dirty block of a file is
+ * written back when the last <tt>OpenFile</tt> for it is closed; runs of
+ * adjacent dirty blocks are written with a single write. The part of a write
+ * past the end of the file is written through instead, so that the
+ * underlying file system has allocated space for every dirty block, and a
+ * full disk shortens the write that extends the file rather than failing a
+ * later write-back. A read that continues where the previous read
+ * on the same <tt>OpenFile</tt> left off also reads the following blocks, in
+ * the same read of the underlying file system.
+ *
+ * <p>
+ * The cache is only locked while its own state changes, not while the
+ * underlying file system is in use, so that a hit never waits for another
+ * thread's miss or write-back. Each file is used by one thread at a time, so
+ * that its reads and writes reach the underlying file system in order, but
+ * different files are read and written at the same time. A block being read
+ * is marked busy, and only threads that need that block wait for it.
+ *
+ * <p>
+ * To use it, set <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.threads.CachingFileSystem</tt>. The file system it wraps is
+ * named by <tt>CachingFileSystem.fileSystem</tt>, and defaults to the stub
+ * file system. <tt>CachingFileSystem.blockSize</tt>,
+ * <tt>CachingFileSystem.numBlocks</tt>, and
+ * <tt>CachingFileSystem.readAhead</tt> set the size of a block, the number
+ * of blocks in the cache, and the number of blocks to read ahead.
+ */
+public class CachingFileSystem implements FileSystem {
+    /**
+     * Allocate a new caching file system, configured as described above.
+     */
+    public CachingFileSystem() {
+	this(getFileSystem(),
+	     Config.getInteger("CachingFileSystem.blockSize", 1024),
+	     Config.getInteger("CachingFileSystem.numBlocks", 64),
+	     Config.getInteger("CachingFileSystem.readAhead", 8));
+    }
+
+    /**
+     * Allocate a new caching file system.
+     *
+     * @param	fileSystem	the file system to cache.
+     * @param	blockSize	the size of a block, in bytes.
+     * @param	numBlocks	the number of blocks to cache.
+     * @param	readAhead	the number of blocks to read at once when
+     *				reading sequentially.
+     */
+    public CachingFileSystem(FileSystem fileSystem, int blockSize,
+			     int numBlocks, int readAhead) {
+	Lib.assertTrue(fileSystem != null, "no file system to cache");
+	Lib.assertTrue(blockSize > 0 && numBlocks > 0 && readAhead > 0);
+
+	this.fileSystem = fileSystem;
+	this.blockSize = blockSize;
+	this.numBlocks = numBlocks;
+	this.readAhead = Math.min(readAhead, numBlocks);
+    }
+
+    private static FileSystem getFileSystem() {
+	String name = Config.getString("CachingFileSystem.fileSystem");
+	if (name != null)
+	    return (FileSystem) Lib.constructObject(name);
+	else
+	    return Machine.stubFileSystem();
+    }
+
+    public OpenFile open(String name, boolean create) {
+	lock.acquire();
+
+	CachedFile file = beginIO(name);
+
+	// the file is truncated, so its cached blocks are stale
+	if (create)
+	    dropBlocks(file);
+
+	lock.release();
+
+	OpenFile handle = fileSystem.open(name, create);
+
+	lock.acquire();
+
+	OpenFile result = null;
+	if (handle != null) {
+	    if (file.handles.isEmpty() || create)
+		file.length = handle.length();
+
+	    file.handles.add(handle);
+	    result = new CachedOpenFile(file, handle);
+	}
+
+	endIO(file);
+	forgetIfUnused(file);
+
+	lock.release();
+
+	return result;
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	CachedFile file = beginIO(name);
+	files.remove(name);
+
+	// open files still use the blocks of a removed file, until closed
+	if (file.handles.isEmpty())
+	    dropBlocks(file);
+
+	lock.release();
+
+	boolean result = fileSystem.remove(name);
+
+	lock.acquire();
+	endIO(file);
+	lock.release();
+
+	return result;
+    }
+
+    /**
+     * Wait until no other thread is using the underlying file system for a
+     * file, and start using it. The file's entry in <tt>files</tt> is
+     * created if necessary.
+     *
+     * @param	name	the name of the file.
+     * @return	the file, which is in <tt>files</tt>.
+     */
+    private CachedFile beginIO(String name) {
+	while (true) {
+	    CachedFile file = files.get(name);
+	    if (file == null) {
+		file = new CachedFile(name);
+		files.put(name, file);
+	    }
+
+	    beginIO(file);
+
+	    // the file may have been removed while this thread waited
+	    if (files.get(name) == file)
+		return file;
+
+	    endIO(file);
+	}
+    }
+
+    /**
+     * Wait until no other thread is using the underlying file system for a
+     * file, and start using it. Until <tt>endIO()</tt>, the file's blocks are
+     * only changed by this thread, except that other threads can still find
+     * blocks that are not busy in the cache, write to them, and evict them.
+     */
+    private void beginIO(CachedFile file) {
+	file.pins++;
+	while (file.busy)
+	    ioDone.sleep();
+
+	file.busy = true;
+    }
+
+    private void endIO(CachedFile file) {
+	file.busy = false;
+	file.pins--;
+
+	ioDone.wakeAll();
+    }
+
+    /**
+     * Forget a file that is not open, has no cached blocks, and is not in
+     * use, so that <tt>files</tt> only holds files the cache knows something
+     * about.
+     */
+    private void forgetIfUnused(CachedFile file) {
+	if (file.handles.isEmpty() && file.blocks.isEmpty() &&
+	    file.pins == 0 && files.get(file.name) == file)
+	    files.remove(file.name);
+    }
+
+    /**
+     * Evict every block of a file without writing it back. The caller must
+     * be using the file, so that none of its blocks is busy.
+     */
+    private void dropBlocks(CachedFile file) {
+	for (Block block : file.blocks.values()) {
+	    cache.remove(block);
+	    freeBlocks.add(block);
+	}
+	file.blocks.clear();
+
+	ioDone.wakeAll();
+    }
+
+    /**
+     * Write back every dirty block of a file.
+     */
+    private void flush(CachedFile file) {
+	while (true) {
+	    Block dirty = null;
+	    for (Block block : file.blocks.values()) {
+		if (block.dirty) {
+		    dirty = block;
+		    break;
+		}
+	    }
+
+	    if (dirty == null)
+		return;
+
+	    writeBack(file, dirty.number);
+	}
+    }
+
+    /**
+     * Write back a dirty block, together with the dirty blocks on either
+     * side of it, in one write. The cache is unlocked during the write; the
+     * blocks are copied first, so that they can be written to meanwhile.
+     */
+    private void writeBack(CachedFile file, int number) {
+	beginIO(file);
+
+	if (!isDirty(file, number)) {
+	    endIO(file);
+	    return;
+	}
+
+	int first = number, last = number;
+	while (isDirty(file, first-1))
+	    first--;
+	while (isDirty(file, last+1))
+	    last++;
+
+	int start = first*blockSize;
+	int length = Math.min((last+1)*blockSize, file.length) - start;
+
+	byte[] buffer = new byte[(last-first+1)*blockSize];
+	for (int i=first; i<=last; i++) {
+	    Block dirty = file.blocks.get(i);
+	    System.arraycopy(dirty.data, 0, buffer, (i-first)*blockSize,
+			     blockSize);
+	    dirty.dirty = false;
+	}
+
+	Lib.debug(dbgCache, "writing blocks " + first + "-" + last + " of " +
+		  file.name);
+
+	if (length > 0) {
+	    OpenFile handle = file.handles.getFirst();
+
+	    lock.release();
+	    int written = handle.write(start, buffer, 0, length);
+	    lock.acquire();
+
+	    numWrites++;
+	    if (written != length) {
+		Lib.debug(dbgCache, "write-back of " + file.name + " failed");
+		numFailedWrites++;
+	    }
+	}
+
+	endIO(file);
+    }
+
+    private boolean isDirty(CachedFile file, int number) {
+	Block block = file.blocks.get(number);
+	return block != null && block.dirty;
+    }
+
+    /**
+     * Return a block of a file, reading it into the cache if necessary. A
+     * block that another thread is reading is waited for. The cache may be
+     * unlocked meanwhile, but the block is not evicted before the caller
+     * unlocks the cache again.
+     *
+     * @param	file	the file.
+     * @param	number	the block number.
+     * @param	count	the number of blocks to read, starting with this one,
+     *			if the block is not cached.
+     * @param	fill	<tt>true</tt> if the block's contents are needed.
+     *			Otherwise a block that is not cached is zero-filled
+     *			instead of being read.
+     * @return	the block, most recently used, or <tt>null</tt> if it could
+     *		not be read.
+     */
+    private Block getBlock(CachedFile file, int number, int count,
+			   boolean fill) {
+	boolean missed = false;
+
+	while (true) {
+	    Block block = file.blocks.get(number);
+	    if (block != null && block.busy) {
+		ioDone.sleep();
+		continue;
+	    }
+
+	    if (block != null) {
+		cache.remove(block);
+		cache.add(block);
+
+		if (missed)
+		    numMisses++;
+		else
+		    numHits++;
+		return block;
+	    }
+
+	    missed = true;
+	    if (fill) {
+		if (!readBlocks(file, number, count))
+		    return null;
+	    }
+	    else {
+		zeroBlock(file, number);
+	    }
+	}
+    }
+
+    /**
+     * Add a zero-filled block to the cache, unless another thread adds it
+     * first.
+     */
+    private void zeroBlock(CachedFile file, int number) {
+	Block block = allocateBlock(true);
+
+	if (file.blocks.containsKey(number)) {
+	    freeBlock(block);
+	    return;
+	}
+
+	Arrays.fill(block.data, (byte) 0);
+	addBlock(block, file, number, false);
+    }
+
+    /**
+     * Read a block that is not cached, and up to <i>count</i>-1 following
+     * blocks, in one read, unless another thread adds the block first. The
+     * blocks are added to the cache, marked busy, before the read, so that no
+     * other thread reads them too; the cache is unlocked during the read.
+     *
+     * @return	<tt>false</tt> if the underlying file system could not read
+     *		the blocks.
+     */
+    private boolean readBlocks(CachedFile file, int number, int count) {
+	// read nothing past the end of the file
+	int fileBlocks = Lib.divRoundUp(file.length, blockSize);
+	count = Math.min(count, fileBlocks-number);
+	if (count <= 0) {
+	    zeroBlock(file, number);
+	    return true;
+	}
+
+	// get the blocks first, since writing one back may need this file
+	Block[] blocks = new Block[count];
+	int numTaken = 0;
+	do {
+	    blocks[numTaken] = allocateBlock(numTaken == 0);
+	} while (blocks[numTaken] != null && ++numTaken < count);
+
+	beginIO(file);
+
+	// read nothing past the end of the file, or already in the cache
+	fileBlocks = Lib.divRoundUp(file.length, blockSize);
+	count = Math.min(numTaken, fileBlocks-number);
+	for (int i=0; i<count; i++) {
+	    if (file.blocks.containsKey(number+i)) {
+		count = i;
+		break;
+	    }
+	}
+
+	for (int i=Math.max(count, 0); i<numTaken; i++)
+	    freeBlock(blocks[i]);
+
+	if (count <= 0) {
+	    endIO(file);
+	    return true;
+	}
+
+	// the requested block comes last, so that it is the most recent
+	for (int i=count-1; i>=0; i--)
+	    addBlock(blocks[i], file, number+i, true);
+
+	Lib.debug(dbgCache, "reading blocks " + number + "-" +
+		  (number+count-1) + " of " + file.name);
+
+	int start = number*blockSize;
+	int length = Math.min((number+count)*blockSize, file.length) - start;
+	byte[] buffer = new byte[count*blockSize];
+	OpenFile handle = file.handles.getFirst();
+
+	lock.release();
+
+	// a hole past the end of the underlying file reads as zeros
+	int read = handle.read(start, buffer, 0, length);
+
+	lock.acquire();
+
+	numReads++;
+
+	for (int i=0; i<count; i++) {
+	    if (read < 0) {
+		cache.remove(blocks[i]);
+		file.blocks.remove(number+i);
+		freeBlocks.add(blocks[i]);
+	    }
+	    else {
+		System.arraycopy(buffer, i*blockSize, blocks[i].data, 0,
+				 blockSize);
+		blocks[i].busy = false;
+	    }
+	}
+
+	if (read < 0)
+	    Lib.debug(dbgCache, "read of " + file.name + " failed");
+
+	endIO(file);
+
+	return read >= 0;
+    }
+
+    /**
+     * Write the part of a write past the end of a file through to the
+     * underlying file system, and copy it into the blocks of the file that
+     * are cached. Blocks that are not cached are not read.
+     *
+     * @param	file	the file.
+     * @param	handle	the open file to write with.
+     * @param	pos	the position in the file of the write.
+     * @param	buf	the data to write.
+     * @param	offset	the offset in <i>buf</i> of the data.
+     * @param	length	the number of bytes to write.
+     * @return	the number of bytes written, or -1 if none could be.
+     */
+    private int writeThrough(CachedFile file, OpenFile handle, int pos,
+			     byte[] buf, int offset, int length) {
+	beginIO(file);
+
+	Lib.debug(dbgCache, "writing through " + length + " bytes of " +
+		  file.name);
+
+	lock.release();
+	int written = handle.write(pos, buf, offset, length);
+	lock.acquire();
+
+	numWrites++;
+
+	for (int done=0; done<written; ) {
+	    int number = (pos+done)/blockSize;
+	    int blockOffset = (pos+done)%blockSize;
+	    int n = Math.min(blockSize-blockOffset, written-done);
+
+	    // a dirty block keeps its other changes, and is still written back
+	    Block block = file.blocks.get(number);
+	    if (block != null)
+		System.arraycopy(buf, offset+done, block.data, blockOffset, n);
+	    done += n;
+	}
+
+	if (written > 0)
+	    file.length = Math.max(file.length, pos+written);
+
+	endIO(file);
+
+	return written;
+    }
+
+    /**
+     * Return a block that belongs to no file: a free one, a new one if the
+     * cache is not full, or the least recently used block that is not busy,
+     * which is evicted.
+     *
+     * @param	wait	<tt>true</tt> to write back a dirty block or wait for
+     *			a busy one if necessary, which unlocks the cache.
+     * @return	the block, or <tt>null</tt> if <i>wait</i> is
+     *		<tt>false</tt> and no block is available without waiting.
+     */
+    private Block allocateBlock(boolean wait) {
+	while (true) {
+	    if (!freeBlocks.isEmpty())
+		return freeBlocks.removeFirst();
+
+	    if (numAllocated < numBlocks) {
+		numAllocated++;
+		return new Block(blockSize);
+	    }
+
+	    Block victim = null;
+	    for (Block block : cache) {
+		if (!block.busy) {
+		    victim = block;
+		    break;
+		}
+	    }
+
+	    if (victim != null && !victim.dirty) {
+		cache.remove(victim);
+		victim.file.blocks.remove(victim.number);
+		forgetIfUnused(victim.file);
+		return victim;
+	    }
+
+	    if (!wait)
+		return null;
+
+	    if (victim != null)
+		writeBack(victim.file, victim.number);
+	    else
+		ioDone.sleep();
+	}
+    }
+
+    private void freeBlock(Block block) {
+	freeBlocks.add(block);
+	ioDone.wakeAll();
+    }
+
+    private void addBlock(Block block, CachedFile file, int number,
+			  boolean busy) {
+	block.file = file;
+	block.number = number;
+	block.dirty = false;
+	block.busy = busy;
+
+	file.blocks.put(number, block);
+	cache.add(block);
+    }
+
+    /**
+     * The cache's view of a file: its length, which is also the length of
+     * the underlying file once any write through past its end completes,
+     * and its cached blocks.
+     */
+    private static class CachedFile {
+	CachedFile(String name) {
+	    this.name = name;
+	}
+
+	String name;
+	int length;
+	/** The cached blocks of this file, by block number. */
+	HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+	/** The open files of the underlying file system. */
+	LinkedList<OpenFile> handles = new LinkedList<OpenFile>();
+	/** <tt>true</tt> while a thread is using the underlying file. */
+	boolean busy = false;
+	/** The number of threads using or waiting to use the file. */
+	int pins = 0;
+    }
+
+    private static class Block {
+	Block(int blockSize) {
+	    data = new byte[blockSize];
+	}
+
+	CachedFile file;
+	int number;
+	boolean dirty;
+	/** <tt>true</tt> while the block is being read. */
+	boolean busy;
+	byte[] data;
+    }
+
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(CachedFile file, OpenFile handle) {
+	    super(CachingFileSystem.this, file.name);
+
+	    this.file = file;
+	    this.handle = handle;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= buf.length);
+
+	    if (handle == null || pos < 0)
+		return -1;
+
+	    lock.acquire();
+
+	    int end = Math.min(pos+length, file.length);
+	    int amount = Math.max(end-pos, 0);
+
+	    for (int done=0; done<amount; ) {
+		int number = (pos+done)/blockSize;
+		int blockOffset = (pos+done)%blockSize;
+		int n = Math.min(blockSize-blockOffset, amount-done);
+
+		// read the rest of the request at once, and more if sequential
+		int count = Lib.divRoundUp(blockOffset+amount-done, blockSize);
+		if (pos == 0 || number == nextBlock || number == nextBlock-1)
+		    count = Math.max(count, readAhead);
+
+		Block block = getBlock(file, number, count, true);
+		if (block == null) {
+		    amount = done;
+		    break;
+		}
+
+		System.arraycopy(block.data, blockOffset, buf, offset+done, n);
+		done += n;
+	    }
+
+	    if (amount > 0)
+		nextBlock = (pos+amount-1)/blockSize + 1;
+
+	    lock.release();
+
+	    return (amount > 0 || end <= pos) ? amount : -1;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= buf.length);
+
+	    if (handle == null || pos < 0)
+		return -1;
+
+	    lock.acquire();
+
+	    // only the part before the end of the file is cached
+	    int cached = Math.max(Math.min(length, file.length-pos), 0);
+
+	    int done = 0;
+	    while (done < cached) {
+		int number = (pos+done)/blockSize;
+		int blockOffset = (pos+done)%blockSize;
+		int n = Math.min(blockSize-blockOffset, cached-done);
+
+		// a block that is overwritten entirely need not be read
+		Block block = getBlock(file, number, 1, n < blockSize);
+		if (block == null)
+		    break;
+
+		System.arraycopy(buf, offset+done, block.data, blockOffset, n);
+		block.dirty = true;
+		done += n;
+	    }
+
+	    if (done == cached && done < length) {
+		int written = writeThrough(file, handle, pos+done, buf,
+					   offset+done, length-done);
+		if (written > 0)
+		    done += written;
+	    }
+
+	    lock.release();
+
+	    return (done > 0 || length == 0) ? done : -1;
+	}
+
+	public int length() {
+	    return (handle == null) ? -1 : file.length;
+	}
+
+	public void close() {
+	    if (handle == null)
+		return;
+
+	    lock.acquire();
+
+	    if (file.handles.size() == 1)
+		flush(file);
+
+	    beginIO(file);
+
+	    OpenFile closing = handle;
+	    file.handles.remove(closing);
+	    handle = null;
+
+	    // a removed file's blocks can no longer be reached
+	    if (file.handles.isEmpty() && files.get(file.name) != file)
+		dropBlocks(file);
+
+	    lock.release();
+
+	    closing.close();
+
+	    lock.acquire();
+
+	    endIO(file);
+	    forgetIfUnused(file);
+
+	    lock.release();
+	}
+
+	private CachedFile file;
+	private OpenFile handle;
+	/** The block after the last one read, for detecting sequential reads. */
+	private int nextBlock = -1;
+    }
+
+    /** The number of block accesses found in the cache. */
+    public int numHits = 0;
+    /** The number of block accesses that missed the cache. */
+    public int numMisses = 0;
+    /** The number of reads of the underlying file system. */
+    public int numReads = 0;
+    /** The number of writes to the underlying file system. */
+    public int numWrites = 0;
+    /** The number of write-backs the underlying file system refused. */
+    public int numFailedWrites = 0;
+
+    private FileSystem fileSystem;
+    private int blockSize, numBlocks, readAhead;
+
+    /** Held while the cache's state is in use. */
+    private Lock lock = new Lock();
+    /** Signalled when a file or block stops being busy, or a block is freed. */
+    private Condition ioDone = new Condition(lock);
+    /** The files with cached blocks, open files, or threads using them. */
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+    /** Every cached block, least recently used first. */
+    private LinkedHashSet<Block> cache = new LinkedHashSet<Block>();
+    /** Blocks that belong to no file. */
+    private LinkedList<Block> freeBlocks = new LinkedList<Block>();
+    /** The number of blocks allocated so far. */
+    private int numAllocated = 0;
+
+    private static final char dbgCache = 'f';
+}
@@ -0,0 +1,176 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Measures how quickly the kernel switches between threads, so that changes
+ * to <tt>KThread</tt>, <tt>TCB</tt>, and the schedulers can be compared
+ * against a baseline. Each workload reports the number of context switches it
+ * caused per second of real time.
+ *
+ * <p>
+ * The workloads run under whatever scheduler
+ * <tt>ThreadedKernel.scheduler</tt> selects, so run once per scheduler to
+ * compare them. The number of iterations is set by
+ * <tt>ContextSwitchBenchmark.iterations</tt>.
+ */
+public class ContextSwitchBenchmark {
+    /**
+     * Run every workload and print the results. Called by
+     * <tt>ThreadedKernel.selfTest()</tt> when
+     * <tt>ThreadedKernel.benchmark</tt> is set.
+     */
+    public static void run() {
+	int iterations =
+	    Config.getInteger("ContextSwitchBenchmark.iterations", 10000);
+
+	System.out.println("context switch benchmark, scheduler = " +
+			   ThreadedKernel.scheduler.getClass().getName());
+
+	measure("yield ping-pong", new YieldPingPong(iterations));
+	measure("semaphore handoff", new SemaphoreHandoff(iterations));
+	measure("lock contention", new LockContention(iterations));
+	measure("fork/finish churn", new ForkChurn(iterations));
+    }
+
+    /**
+     * Run a workload in the current thread and print how many context
+     * switches it caused per second.
+     */
+    private static void measure(String name, Runnable workload) {
+	long switches = KThread.numContextSwitches;
+	long ticks = Machine.timer().getTime();
+	long start = System.nanoTime();
+
+	workload.run();
+
+	long elapsed = System.nanoTime() - start;
+	switches = KThread.numContextSwitches - switches;
+	ticks = Machine.timer().getTime() - ticks;
+
+	long perSecond =
+	    (elapsed > 0) ? (long) (switches * 1000000000.0 / elapsed) : 0;
+
+	System.out.println("  " + name + ": " + switches + " switches in " +
+			   (elapsed/1000000) + " ms (" + perSecond +
+			   " switches/s, " + ticks + " ticks)");
+    }
+
+    /**
+     * Two threads yielding back and forth.
+     */
+    private static class YieldPingPong implements Runnable {
+	YieldPingPong(int iterations) {
+	    this.iterations = iterations;
+	}
+
+	public void run() {
+	    final Semaphore done = new Semaphore(0);
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int i=0; i<iterations; i++)
+			    KThread.yield();
+			done.V();
+		    }
+		}).setName("yield partner").fork();
+
+	    for (int i=0; i<iterations; i++)
+		KThread.yield();
+	    done.P();
+	}
+
+	private int iterations;
+    }
+
+    /**
+     * Two threads handing control back and forth with a pair of semaphores.
+     */
+    private static class SemaphoreHandoff implements Runnable {
+	SemaphoreHandoff(int iterations) {
+	    this.iterations = iterations;
+	}
+
+	public void run() {
+	    final Semaphore ping = new Semaphore(0);
+	    final Semaphore pong = new Semaphore(0);
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int i=0; i<iterations; i++) {
+			    ping.P();
+			    pong.V();
+			}
+		    }
+		}).setName("semaphore partner").fork();
+
+	    for (int i=0; i<iterations; i++) {
+		ping.V();
+		pong.P();
+	    }
+	}
+
+	private int iterations;
+    }
+
+    /**
+     * Several threads repeatedly acquiring one lock, and yielding while they
+     * hold it so that the others queue up.
+     */
+    private static class LockContention implements Runnable {
+	LockContention(int iterations) {
+	    this.iterations = iterations;
+	}
+
+	public void run() {
+	    final Lock lock = new Lock();
+	    final Semaphore done = new Semaphore(0);
+
+	    for (int i=0; i<numThreads; i++) {
+		new KThread(new Runnable() {
+			public void run() {
+			    for (int j=0; j<iterations/numThreads; j++) {
+				lock.acquire();
+				KThread.yield();
+				lock.release();
+			    }
+			    done.V();
+			}
+		    }).setName("lock contender " + i).fork();
+	    }
+
+	    for (int i=0; i<numThreads; i++)
+		done.P();
+	}
+
+	private int iterations;
+
+	private static final int numThreads = 4;
+    }
+
+    /**
+     * Forking threads that finish immediately, one at a time.
+     */
+    private static class ForkChurn implements Runnable {
+	ForkChurn(int iterations) {
+	    this.iterations = iterations;
+	}
+
+	public void run() {
+	    final Semaphore done = new Semaphore(0);
+	    Runnable target = new Runnable() {
+		    public void run() {
+			done.V();
+		    }
+		};
+
+	    // thread creation is far more expensive than a switch
+	    for (int i=0; i<iterations/10; i++) {
+		new KThread(target).setName("churn").fork();
+		done.P();
+	    }
+	}
+
+	private int iterations;
+    }
+}
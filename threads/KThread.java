@@ -307,9 +307,13 @@ public class KThread {
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	if (nextThread == null) {
 	    nextThread = idleThread;
 
+	    // nothing can become ready before the next interrupt
+	    Machine.interrupt().idle();
+	}
+
 	nextThread.run();
     }
 
@@ -343,6 +347,9 @@ public class KThread {
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
+	if (currentThread != this)
+	    numContextSwitches++;
+
 	currentThread = this;
 
 	tcb.contextSwitch();
@@ -409,6 +416,9 @@ public class KThread {
 
     private static final char dbgThread = 't';
 
+    /** The number of times the CPU has switched to a different thread. */
+    static long numContextSwitches = 0;
+
     /**
      * Additional state used by schedulers.
      *
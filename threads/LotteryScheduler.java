@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,11 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * that holding a lottery, and changing a waiting thread's tickets when
+ * donations change, take time logarithmic in the number of waiting threads.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +43,311 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    /**
+     * Return the minimum number of tickets a thread can have.
+     *
+     * @return	the minimum number of tickets.
+     */
+    protected int getPriorityMinimum() {
+	return 1;
+    }
+
+    /**
+     * Return the maximum number of tickets a thread can have.
+     *
+     * @return	the maximum number of tickets.
+     */
+    protected int getPriorityMaximum() {
+	return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (ThreadState) thread.schedulingState;
     }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses threads by lottery.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    ((LotteryState) getThreadState(thread)).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    ((LotteryState) getThreadState(thread)).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (numWaiting == 0)
+		return null;
+
+	    long winner;
+	    if (totalTickets <= Integer.MAX_VALUE)
+		winner = Lib.random((int) totalTickets);
+	    else
+		winner = Math.min((long) (Lib.random() * totalTickets),
+				  totalTickets-1);
+
+	    LotteryState next = slots[find(winner)];
+
+	    remove(next);
+	    next.waitingOn = null;
+
+	    next.acquire(this);
+	    
+	    return next.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=capacity; i++) {
+		if (slots[i] != null)
+		    System.out.print(slots[i].thread + "(" +
+				     slots[i].effectiveTickets + ") ");
+	    }
+	}
+
+	/**
+	 * Add a waiting thread's tickets to the tree.
+	 */
+	void add(LotteryState state) {
+	    if (numFree == 0)
+		grow();
+
+	    int slot = freeSlots[--numFree];
+	    slots[slot] = state;
+	    state.slot = slot;
+	    numWaiting++;
+
+	    update(slot, state.effectiveTickets);
+	    donate(state.effectiveTickets);
+	}
+
+	/**
+	 * Remove a waiting thread's tickets from the tree.
+	 */
+	void remove(LotteryState state) {
+	    update(state.slot, -state.effectiveTickets);
+	    donate(-state.effectiveTickets);
+
+	    slots[state.slot] = null;
+	    freeSlots[numFree++] = state.slot;
+	    state.slot = 0;
+	    numWaiting--;
+	}
+
+	/**
+	 * Change the tickets in a slot by <i>delta</i>.
+	 */
+	void update(int slot, long delta) {
+	    totalTickets += delta;
+	    for (int i=slot; i<=capacity; i+=(i & -i))
+		tree[i] += delta;
+	}
+
+	/**
+	 * Pass a change in the tickets waiting on this queue on to the owner.
+	 */
+	private void donate(long delta) {
+	    if (transferPriority && owner != null)
+		owner.changeTickets(delta);
+	}
+
+	/**
+	 * Return the slot holding ticket number <i>ticket</i>, counting the
+	 * tickets of every slot in order.
+	 */
+	private int find(long ticket) {
+	    int position = 0;
+	    
+	    for (int step=Integer.highestOneBit(capacity); step>0; step>>=1) {
+		if (position+step <= capacity && tree[position+step] <= ticket) {
+		    position += step;
+		    ticket -= tree[position];
+		}
+	    }
+
+	    return position+1;
+	}
+
+	/**
+	 * Double the number of slots and rebuild the tree.
+	 */
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity = (capacity == 0) ? 8 : capacity*2;
+
+	    LotteryState[] oldSlots = slots;
+	    slots = new LotteryState[capacity+1];
+	    tree = new long[capacity+1];
+	    freeSlots = new int[capacity];
+	    numFree = 0;
+	    
+	    for (int i=capacity; i>oldCapacity; i--)
+		freeSlots[numFree++] = i;
+
+	    for (int i=1; i<=oldCapacity; i++) {
+		slots[i] = oldSlots[i];
+
+		tree[i] += slots[i].effectiveTickets;
+		int parent = i + (i & -i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * Make a thread the owner of this queue, taking the tickets donated
+	 * through it away from the previous owner.
+	 */
+	void setOwner(LotteryState newOwner) {
+	    donate(-totalTickets);
+	    owner = newOwner;
+	    donate(totalTickets);
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The Fenwick tree over the slots' tickets, indexed from 1. */
+	private long[] tree = new long[1];
+	/** The waiting thread in each slot, indexed from 1. */
+	private LotteryState[] slots = new LotteryState[1];
+	private int capacity = 0;
+	private int[] freeSlots = new int[0];
+	private int numFree = 0;
+	private int numWaiting = 0;
+	private long totalTickets = 0;
+	/** The thread that last acquired this queue, if it transfers. */
+	private LotteryState owner = null;
+    }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler. The
+     * effective number of tickets is the thread's own tickets plus every
+     * ticket waiting on a queue it owns.
+     */
+    protected class LotteryState extends ThreadState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return the effective number of tickets of the associated thread,
+	 * limited to <tt>getPriorityMaximum()</tt>.
+	 *
+	 * @return	the effective number of tickets.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(effectiveTickets, getPriorityMaximum());
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    // the first call, from ThreadState's constructor, starts from none
+	    long oldTickets =
+		(this.priority < getPriorityMinimum()) ? 0 : this.priority;
+	    long delta = (long) priority - oldTickets;
+	    this.priority = priority;
+
+	    changeTickets(delta);
+	}
+
+	/**
+	 * Called when the associated thread waits on <i>waitQueue</i>.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <i>waitQueue</i>.
+	 *
+	 * @param	waitQueue	the queue that was acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waitQueue.transferPriority)
+		waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Add <i>delta</i> to the effective tickets of the associated thread,
+	 * and pass the change along the chain of donations. The walk stops at
+	 * the first thread it has already passed, since a cycle of donations
+	 * would otherwise never end.
+	 */
+	void changeTickets(long delta) {
+	    LotteryState state = this;
+	    int walk = ++numWalks;
+
+	    while (delta != 0 && state.lastWalk != walk) {
+		state.lastWalk = walk;
+		state.effectiveTickets += delta;
+
+		LotteryQueue waitQueue = (LotteryQueue) state.waitingOn;
+		if (waitQueue == null)
+		    break;
+
+		waitQueue.update(state.slot, delta);
+		if (!waitQueue.transferPriority || waitQueue.owner == null)
+		    break;
+
+		state = waitQueue.owner;
+	    }
+	}
+
+	/** The effective number of tickets of the associated thread. */
+	long effectiveTickets;
+	/** This thread's slot in <tt>waitingOn</tt>, or 0. */
+	int slot;
+	/** The last <tt>changeTickets()</tt> walk that passed this thread. */
+	private int lastWalk;
+    }
+
+    /** The number of <tt>changeTickets()</tt> walks so far. */
+    private int numWalks = 0;
 }
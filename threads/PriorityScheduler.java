@@ -2,9 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +25,14 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps the waiting threads at each priority level sorted by when
+ * they started waiting, and a bitmap of the levels that are not empty, so
+ * finding the level of the next thread takes constant time, and adding or
+ * moving a thread takes logarithmic time. Effective priorities are cached,
+ * and are only recomputed and passed along the chain of donations when they
+ * change.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -60,8 +68,8 @@ public class PriorityScheduler extends Scheduler {
     public void setPriority(KThread thread, int priority) {
 	Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	Lib.assertTrue(priority >= priorityMinimum &&
-		   priority <= priorityMaximum);
+	Lib.assertTrue(priority >= getPriorityMinimum() &&
+		   priority <= getPriorityMaximum());
 	
 	getThreadState(thread).setPriority(priority);
     }
@@ -72,8 +80,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == getPriorityMaximum()) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +97,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == getPriorityMinimum()) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -109,6 +121,26 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;    
 
+    /**
+     * Return the minimum priority that a thread can have under this
+     * scheduler.
+     *
+     * @return	the minimum priority.
+     */
+    protected int getPriorityMinimum() {
+	return priorityMinimum;
+    }
+
+    /**
+     * Return the maximum priority that a thread can have under this
+     * scheduler.
+     *
+     * @return	the maximum priority.
+     */
+    protected int getPriorityMaximum() {
+	return priorityMaximum;
+    }
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -128,6 +160,9 @@ public class PriorityScheduler extends Scheduler {
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
 	    this.transferPriority = transferPriority;
+
+	    for (int p=0; p<=priorityMaximum; p++)
+		levels.add(new TreeSet<ThreadState>(byWaitOrder));
 	}
 
 	public void waitForAccess(KThread thread) {
@@ -142,8 +177,19 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    int oldTop = topPriority();
+	    remove(next);
+	    next.waitingOn = null;
+	    topChanged(oldTop);
+
+	    next.acquire(this);
+	    
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +200,87 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    int top = topPriority();
+	    if (top < 0)
+		return null;
+
+	    return levels.get(top).first();
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int p=priorityMaximum; p>=priorityMinimum; p--) {
+		for (ThreadState s : levels.get(p))
+		    System.out.print(s.thread + "(" + p + ") ");
+	    }
+	}
+
+	/**
+	 * Return the highest effective priority of any waiting thread.
+	 *
+	 * @return	the highest effective priority, or -1 if no thread is
+	 *		waiting.
+	 */
+	protected int topPriority() {
+	    if (nonEmpty == 0)
+		return -1;
+
+	    return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+	}
+
+	/**
+	 * Add a waiting thread to the threads at its effective priority.
+	 * Threads stay in the order in which they started waiting, even when
+	 * they move between levels.
+	 */
+	void add(ThreadState state) {
+	    int p = state.effectivePriority;
+
+	    levels.get(p).add(state);
+	    nonEmpty |= (1 << p);
+	}
+
+	/**
+	 * Remove a waiting thread from the threads at its effective priority.
+	 */
+	void remove(ThreadState state) {
+	    int p = state.effectivePriority;
+
+	    TreeSet<ThreadState> level = levels.get(p);
+	    level.remove(state);
+	    if (level.isEmpty())
+		nonEmpty &= ~(1 << p);
+	}
+
+	/**
+	 * Pass a change in the highest waiting priority on to the owner.
+	 *
+	 * @param	oldTop	the value of <tt>topPriority()</tt> before the
+	 *			change.
+	 */
+	void topChanged(int oldTop) {
+	    int newTop = topPriority();
+	    if (newTop == oldTop || !transferPriority || owner == null)
+		return;
+
+	    owner.changeDonation(oldTop, newTop);
+	}
+
+	/**
+	 * Make a thread the owner of this queue, taking the priority donated
+	 * through it away from the previous owner.
+	 */
+	void setOwner(ThreadState newOwner) {
+	    int top = topPriority();
+
+	    if (owner != null)
+		owner.changeDonation(top, -1);
+
+	    owner = newOwner;
+
+	    if (owner != null)
+		owner.changeDonation(-1, top);
 	}
 
 	/**
@@ -168,6 +288,14 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The waiting threads at each priority, longest waiting first. */
+	private ArrayList<TreeSet<ThreadState>> levels =
+	    new ArrayList<TreeSet<ThreadState>>(priorityMaximum+1);
+	/** Bit <i>p</i> is set if some thread is waiting at priority <i>p</i>. */
+	private int nonEmpty = 0;
+	/** The thread that last acquired this queue, if it transfers. */
+	private ThreadState owner = null;
     }
 
     /**
@@ -205,8 +333,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +347,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +363,14 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitOrder = numWaits++;
+
+	    int oldTop = waitQueue.topPriority();
+	    waitQueue.add(this);
+	    waitQueue.topChanged(oldTop);
 	}
 
 	/**
@@ -250,12 +384,94 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (waitQueue.transferPriority)
+		waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Move one donation from an owned queue from level <i>from</i> to
+	 * level <i>to</i>, where -1 means no donation.
+	 */
+	void changeDonation(int from, int to) {
+	    if (from >= 0)
+		donations[from]--;
+	    if (to >= 0)
+		donations[to]++;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority. If it changed, move this thread
+	 * to its new list in the queue it is waiting on, and continue down the
+	 * chain of donations as far as the change reaches.
+	 */
+	private void updateEffectivePriority() {
+	    ThreadState state = this;
+
+	    while (state != null) {
+		int effective = state.priority;
+		for (int p=priorityMaximum; p>effective; p--) {
+		    if (state.donations[p] > 0) {
+			effective = p;
+			break;
+		    }
+		}
+
+		if (effective == state.effectivePriority)
+		    return;
+
+		PriorityQueue waitQueue = (PriorityQueue) state.waitingOn;
+		if (waitQueue == null) {
+		    state.effectivePriority = effective;
+		    return;
+		}
+
+		int oldTop = waitQueue.topPriority();
+		waitQueue.remove(state);
+		state.effectivePriority = effective;
+		waitQueue.add(state);
+
+		int newTop = waitQueue.topPriority();
+		if (newTop == oldTop || !waitQueue.transferPriority ||
+		    waitQueue.owner == null)
+		    return;
+
+		// the owner's recomputation is the next step of the loop
+		state = waitQueue.owner;
+		if (oldTop >= 0)
+		    state.donations[oldTop]--;
+		if (newTop >= 0)
+		    state.donations[newTop]++;
+	    }
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
-	protected int priority;
+	protected int priority = -1;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority = -1;
+	/** The queue the associated thread is waiting on, if any. */
+	protected ThreadQueue waitingOn = null;
+
+	/**
+	 * The number of owned queues whose highest waiting priority is each
+	 * level.
+	 */
+	private int[] donations = new int[priorityMaximum+1];
+	/** When the associated thread started waiting, for FIFO order. */
+	private long waitOrder;
     }
+
+    /** Orders waiting threads by when they started waiting. */
+    private Comparator<ThreadState> byWaitOrder =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState s1, ThreadState s2) {
+		return Long.compare(s1.waitOrder, s2.waitOrder);
+	    }
+	};
+
+    /** The number of times any thread has started waiting on a queue. */
+    private long numWaits = 0;
 }
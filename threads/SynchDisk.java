@@ -0,0 +1,387 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Provides a synchronous interface to the machine's disk. Any number of
+ * threads may have requests outstanding at once; they are queued, and the
+ * disk is given the next one each time it finishes a request.
+ *
+ * <p>
+ * <tt>SynchDisk.scheduler</tt> picks the order in which queued requests are
+ * served:
+ * <ul>
+ * <li><tt>fifo</tt>, in the order they were made;
+ * <li><tt>scan</tt>, the elevator algorithm, which serves every request in
+ * the direction the head is moving before turning around at the last one;
+ * <li><tt>clook</tt>, the default, which only serves requests in increasing
+ * order, and then returns to the lowest one.
+ * </ul>
+ * The request served next is merged with any queued requests of the same
+ * kind for the sectors right before or after it, up to
+ * <tt>SynchDisk.maxMerge</tt> sectors, so that the disk transfers them all
+ * at once.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new <tt>SynchDisk</tt>.
+     *
+     * @param	disk	the disk to use.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	String name = Config.getString("SynchDisk.scheduler", "clook");
+	if (name.equals("fifo"))
+	    scheduler = fifo;
+	else if (name.equals("scan"))
+	    scheduler = scan;
+	else if (name.equals("clook"))
+	    scheduler = clook;
+	else
+	    Lib.assertNotReached("unknown disk scheduler: " + name);
+
+	maxMerge = Config.getInteger("SynchDisk.maxMerge", 64);
+	Lib.assertTrue(maxMerge > 0);
+
+	disk.setInterruptHandler(new Runnable() {
+		public void run() { completionInterrupt(); }
+	    });
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    /**
+     * Read a run of consecutive sectors. Blocks until the data has been
+     * read.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	buf	the buffer to store the data in.
+     * @param	offset	the offset in <i>buf</i> of the first sector.
+     */
+    public void readSectors(int sector, int count, byte[] buf, int offset) {
+	request(new Request(sector, count, buf, offset, false));
+    }
+
+    /**
+     * Write a run of consecutive sectors. Blocks until the data has been
+     * written.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	buf	the buffer containing the data.
+     * @param	offset	the offset in <i>buf</i> of the first sector.
+     */
+    public void writeSectors(int sector, int count, byte[] buf, int offset) {
+	request(new Request(sector, count, buf, offset, true));
+    }
+
+    private void request(Request request) {
+	Lib.assertTrue(request.count > 0 &&
+		       request.offset+request.count*sectorSize <=
+		       request.buf.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	queue.add(request);
+	if (current == null)
+	    startNext();
+
+	Machine.interrupt().restore(intStatus);
+
+	request.done.P();
+    }
+
+    /**
+     * Take the next request off the queue, merge it with its neighbors, and
+     * give it to the disk. Interrupts must be disabled.
+     */
+    private void startNext() {
+	Lib.assertTrue(Machine.interrupt().disabled() && current == null);
+
+	if (queue.isEmpty())
+	    return;
+
+	Request first = scheduler.next();
+	queue.remove(first);
+
+	current = new LinkedList<Request>();
+	current.add(first);
+	int start = first.sector, end = first.sector + first.count;
+
+	for (boolean merged=true; merged; ) {
+	    merged = false;
+
+	    for (Iterator<Request> i=queue.iterator(); i.hasNext(); ) {
+		Request request = i.next();
+		if (request.write != first.write ||
+		    end-start + request.count > maxMerge)
+		    continue;
+
+		if (request.sector == end) {
+		    current.addLast(request);
+		    end += request.count;
+		}
+		else if (request.sector + request.count == start) {
+		    current.addFirst(request);
+		    start = request.sector;
+		}
+		else {
+		    continue;
+		}
+
+		i.remove();
+		merged = true;
+	    }
+	}
+
+	// the head ends up after the last sector transferred
+	headSector = (scheduler == scan && !ascending) ? start : end;
+
+	if (current.size() == 1) {
+	    transfer(first.sector, first.count, first.buf, first.offset,
+		     first.write);
+	    return;
+	}
+
+	numMerged += current.size()-1;
+
+	buffer = new byte[(end-start)*sectorSize];
+	if (first.write) {
+	    for (Request request : current) {
+		System.arraycopy(request.buf, request.offset, buffer,
+				 (request.sector-start)*sectorSize,
+				 request.count*sectorSize);
+	    }
+	}
+
+	transfer(start, end-start, buffer, 0, first.write);
+    }
+
+    private void transfer(int sector, int count, byte[] buf, int offset,
+			  boolean write) {
+	if (write)
+	    disk.writeRequest(sector, count, buf, offset);
+	else
+	    disk.readRequest(sector, count, buf, offset);
+
+	numTransfers++;
+    }
+
+    private void completionInterrupt() {
+	Lib.assertTrue(current != null);
+
+	int start = current.getFirst().sector;
+	for (Request request : current) {
+	    if (buffer != null && !request.write) {
+		System.arraycopy(buffer, (request.sector-start)*sectorSize,
+				 request.buf, request.offset,
+				 request.count*sectorSize);
+	    }
+
+	    request.done.V();
+	}
+
+	current = null;
+	buffer = null;
+
+	startNext();
+    }
+
+    /**
+     * Test the disk with several threads making requests at once, check that
+     * each reads back what it wrote, and print how long it took. The threads
+     * first write and read back random sectors, then together write a run
+     * of consecutive sectors, each thread every eighth one, and read it
+     * back. Every sector is restored afterwards, so that the test can be run
+     * on a disk holding a file system.
+     */
+    public static void selfTest() {
+	final SynchDisk disk = ThreadedKernel.disk;
+	final int numThreads = 8, numRequests = 16;
+	final int numSectors = disk.getNumSectors();
+
+	final Semaphore done = new Semaphore(0), start = new Semaphore(0);
+	long startTime = Machine.timer().getTime();
+	int transfers = disk.numTransfers, merged = disk.numMerged;
+
+	for (int t=0; t<numThreads; t++) {
+	    final int id = t;
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] sectors = new int[numRequests];
+
+			// no two threads use the same sector
+			for (int i=0; i<numRequests; i++) {
+			    sectors[i] = Lib.random(numSectors/numThreads) *
+				numThreads + id;
+			}
+
+			for (int i=0; i<numRequests; i++)
+			    testSectors(disk, sectors, i, i+1, id);
+
+			// start the second part together
+			done.V();
+			start.P();
+
+			for (int i=0; i<numRequests; i++)
+			    sectors[i] = i*numThreads + id;
+
+			testSectors(disk, sectors, 0, numRequests, id);
+
+			done.V();
+		    }
+		}).setName("disk test " + t).fork();
+	}
+
+	for (int t=0; t<numThreads; t++)
+	    done.P();
+	for (int t=0; t<numThreads; t++)
+	    start.V();
+	for (int t=0; t<numThreads; t++)
+	    done.P();
+
+	System.out.println("disk test: " + numThreads*numRequests*8 +
+			   " requests in " + (disk.numTransfers-transfers) +
+			   " transfers (" + (disk.numMerged-merged) +
+			   " merged), " + (Machine.timer().getTime()-startTime) +
+			   " ticks");
+    }
+
+    /**
+     * Save some sectors, write each one, read each one back, and restore
+     * them, one sector at a time.
+     */
+    private static void testSectors(SynchDisk disk, int[] sectors, int from,
+				    int to, int id) {
+	byte[][] saved = new byte[to-from][sectorSize];
+	byte[] data = new byte[sectorSize];
+	byte[] check = new byte[sectorSize];
+
+	for (int i=from; i<to; i++)
+	    disk.readSectors(sectors[i], 1, saved[i-from], 0);
+
+	for (int i=from; i<to; i++) {
+	    java.util.Arrays.fill(data, (byte) (id*31 + sectors[i]));
+	    disk.writeSectors(sectors[i], 1, data, 0);
+	}
+
+	for (int i=from; i<to; i++) {
+	    java.util.Arrays.fill(data, (byte) (id*31 + sectors[i]));
+	    disk.readSectors(sectors[i], 1, check, 0);
+	    Lib.assertTrue(java.util.Arrays.equals(data, check),
+			   "disk read back wrong data");
+	}
+
+	for (int i=from; i<to; i++)
+	    disk.writeSectors(sectors[i], 1, saved[i-from], 0);
+    }
+
+    private class Request {
+	Request(int sector, int count, byte[] buf, int offset, boolean write) {
+	    this.sector = sector;
+	    this.count = count;
+	    this.buf = buf;
+	    this.offset = offset;
+	    this.write = write;
+	}
+
+	int sector, count, offset;
+	byte[] buf;
+	boolean write;
+	Semaphore done = new Semaphore(0);
+    }
+
+    /**
+     * A policy choosing the next request to serve.
+     */
+    private abstract class Scheduler {
+	/**
+	 * Return the queued request to serve next. The queue is not empty.
+	 */
+	abstract Request next();
+
+	/**
+	 * Return the queued request with the lowest sector at or above
+	 * <i>sector</i>, or the highest below it, or <tt>null</tt> if there
+	 * is none.
+	 */
+	Request nearest(int sector, boolean above) {
+	    Request best = null;
+	    for (Request request : queue) {
+		if (above ? request.sector < sector : request.sector >= sector)
+		    continue;
+
+		if (best == null ||
+		    (above ? request.sector < best.sector
+			   : request.sector > best.sector))
+		    best = request;
+	    }
+
+	    return best;
+	}
+    }
+
+    private Scheduler fifo = new Scheduler() {
+	    Request next() {
+		return queue.getFirst();
+	    }
+	};
+
+    private Scheduler scan = new Scheduler() {
+	    Request next() {
+		Request request = nearest(headSector, ascending);
+		if (request == null) {
+		    ascending = !ascending;
+		    request = nearest(headSector, ascending);
+		}
+
+		return request;
+	    }
+	};
+
+    private Scheduler clook = new Scheduler() {
+	    Request next() {
+		Request request = nearest(headSector, true);
+		if (request == null)
+		    request = nearest(0, true);
+
+		return request;
+	    }
+	};
+
+    /** The number of transfers the disk has made. */
+    public int numTransfers = 0;
+    /** The number of requests merged into another request's transfer. */
+    public int numMerged = 0;
+
+    private Disk disk;
+    private Scheduler scheduler;
+    private int maxMerge;
+
+    /** The requests waiting for the disk, oldest first. */
+    private LinkedList<Request> queue = new LinkedList<Request>();
+    /** The requests being transferred, in sector order. */
+    private LinkedList<Request> current = null;
+    /** The buffer for a merged transfer. */
+    private byte[] buffer = null;
+
+    /** The sector the head is at, as far as scheduling is concerned. */
+    private int headSector = 0;
+    /** The direction the <tt>scan</tt> scheduler is moving the head in. */
+    private boolean ascending = true;
+
+    private static final int sectorSize = Disk.sectorSize;
+}
@@ -15,14 +15,25 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Initialize this kernel. Creates a scheduler, the first thread, and an
-     * alarm, and enables interrupts. Creates a file system if necessary.   
+     * alarm, and enables interrupts. Creates a file system if necessary, and
+     * a <tt>SynchDisk</tt> if the machine has a disk.
      */
     public void initialize(String[] args) {
 	// set scheduler
 	String schedulerName = Config.getString("ThreadedKernel.scheduler");
 	scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
-	// set fileSystem
+	// start threading
+	new KThread(null);
+
+	alarm  = new Alarm();
+
+	if (Machine.disk() != null)
+	    disk = new SynchDisk(Machine.disk());
+
+	Machine.interrupt().enable();
+
+	// set fileSystem, which may need threads to mount the disk
 	String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 	if (fileSystemName != null)
 	    fileSystem = (FileSystem) Lib.constructObject(fileSystemName);
@@ -30,20 +41,15 @@ public class ThreadedKernel extends Kernel {
 	    fileSystem = Machine.stubFileSystem();
 	else
 	    fileSystem = null;
-
-	// start threading
-	new KThread(null);
-
-	alarm  = new Alarm();
-
-	Machine.interrupt().enable();
     }
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
      * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
      * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * tests here. If the machine has a disk, test it too. If
+     * <tt>ThreadedKernel.benchmark</tt> is set, also run the context switch
+     * benchmark.
      */	
     public void selfTest() {
 	KThread.selfTest();
@@ -52,6 +58,12 @@ public class ThreadedKernel extends Kernel {
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+	if (disk != null) {
+	    SynchDisk.selfTest();
+	}
+	if (Config.getBoolean("ThreadedKernel.benchmark", false)) {
+	    ContextSwitchBenchmark.run();
+	}
     }
     
     /**
@@ -74,6 +86,8 @@ public class ThreadedKernel extends Kernel {
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /** Globally accessible reference to the disk, if the machine has one. */
+    public static SynchDisk disk = null;
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
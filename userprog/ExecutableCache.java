@@ -0,0 +1,349 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A file system that remembers the executables loaded through it, so that
+ * running the same program again does not read and parse its COFF headers
+ * again. Each executable is read into memory in one piece the first time it
+ * is loaded, and its headers are parsed once; every later load shares the
+ * parsed sections, which load their pages from memory.
+ *
+ * <p>
+ * The autograder is still asked for a loader each time an executable is
+ * loaded, and one it supplies is used instead of the cache.
+ *
+ * <p>
+ * All other requests are passed on to the underlying file system. Creating
+ * or removing a file forgets any executable cached under its name, since the
+ * file's contents may no longer match.
+ */
+public class ExecutableCache implements FileSystem {
+    /**
+     * Allocate a new executable cache.
+     *
+     * @param	kernel		the kernel to notify when a cached executable
+     *				changes.
+     * @param	fileSystem	the file system holding the executables.
+     */
+    public ExecutableCache(UserKernel kernel, FileSystem fileSystem) {
+	this.kernel = kernel;
+	this.fileSystem = fileSystem;
+    }
+
+    public OpenFile open(String name, boolean create) {
+	if (create)
+	    invalidate(name);
+
+	return fileSystem.open(name, create);
+    }
+
+    public boolean remove(String name) {
+	invalidate(name);
+
+	return fileSystem.remove(name);
+    }
+
+    /**
+     * Load the COFF executable in the specified file, reading and parsing it
+     * only if it is not already cached. The returned loader belongs to the
+     * caller, and should be closed when the caller is done with it.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @return	a loader for the executable, or <tt>null</tt> if the file
+     *		could not be opened or is not a valid executable.
+     */
+    public Coff load(String name) {
+	OpenFile file = fileSystem.open(name, false);
+	if (file == null) {
+	    Lib.debug(dbgCache, "opening " + name + " failed");
+	    return null;
+	}
+
+	// a loader supplied by the autograder replaces the cache
+	Coff supplied = Machine.autoGrader().createLoader(file);
+	if (supplied != null)
+	    return new SuppliedCoff(supplied, file);
+
+	lock.acquire();
+	CachedCoff coff = executables.get(name);
+	int generation = numInvalidations;
+	lock.release();
+
+	if (coff != null) {
+	    file.close();
+	}
+	else {
+	    coff = read(name, file);
+	    if (coff == null)
+		return null;
+
+	    // the file may have changed while it was read
+	    lock.acquire();
+	    if (numInvalidations == generation)
+		executables.put(name, coff);
+	    lock.release();
+	}
+
+	return new CachedCoff(coff);
+    }
+
+    /**
+     * Read an executable into memory and parse its headers. The file is
+     * closed.
+     */
+    private CachedCoff read(String name, OpenFile file) {
+	Lib.debug(dbgCache, "reading " + name);
+
+	byte[] contents = Lib.loadFile(file);
+	file.close();
+
+	if (contents == null) {
+	    Lib.debug(dbgCache, "\tread failed");
+	    return null;
+	}
+
+	try {
+	    return new CachedCoff(contents);
+	}
+	catch (EOFException e) {
+	    Lib.debug(dbgCache, "\tcoff load failed");
+	    return null;
+	}
+    }
+
+    /**
+     * Forget the executable cached under the specified name, if any, and tell
+     * the kernel so that it can drop anything it derived from the old file.
+     */
+    private void invalidate(String name) {
+	lock.acquire();
+
+	numInvalidations++;
+	if (executables.remove(name) != null) {
+	    Lib.debug(dbgCache, "invalidating " + name);
+	    kernel.executableChanged(name);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * A COFF executable held in memory. <tt>Coff</tt> and
+     * <tt>CoffSection</tt> insist on reading from a file that takes time to
+     * access, so the headers are parsed here, with the same checks.
+     */
+    private static class CachedCoff extends Coff {
+	/**
+	 * Parse an executable.
+	 *
+	 * @param	contents	the contents of the executable file.
+	 * @exception	EOFException	if the executable is corrupt.
+	 */
+	CachedCoff(byte[] contents) throws EOFException {
+	    if (contents.length < headerLength+aoutHeaderLength) {
+		Lib.debug(dbgCache, "\tfile is not executable");
+		throw new EOFException();
+	    }
+
+	    int magic = Lib.bytesToUnsignedShort(contents, 0);
+	    int numSections = Lib.bytesToUnsignedShort(contents, 2);
+	    int optionalHeaderLength = Lib.bytesToUnsignedShort(contents, 16);
+	    int flags = Lib.bytesToUnsignedShort(contents, 18);
+	    entryPoint = Lib.bytesToInt(contents, headerLength+16);
+
+	    if (magic != 0x0162 || numSections < 2 || numSections > 10 ||
+		(flags & 0x0003) != 0x0003) {
+		Lib.debug(dbgCache, "\tbad file header");
+		throw new EOFException();
+	    }
+
+	    int offset = headerLength + optionalHeaderLength;
+
+	    sections = new CoffSection[numSections];
+	    for (int s=0; s<numSections; s++) {
+		sections[s] = new CachedSection(this, contents,
+						offset + s*CoffSection.headerLength);
+	    }
+	}
+
+	/**
+	 * Allocate a loader sharing the sections of a cached executable.
+	 * Closing it does not affect the cached executable.
+	 *
+	 * @param	coff	the cached executable.
+	 */
+	CachedCoff(CachedCoff coff) {
+	    entryPoint = coff.entryPoint;
+	    sections = coff.sections.clone();
+	}
+
+	public int getEntryPoint() {
+	    Lib.assertTrue(sections != null);
+
+	    return entryPoint;
+	}
+
+	public void close() {
+	    sections = null;
+	}
+
+	private static final int headerLength = 20;
+	private static final int aoutHeaderLength = 28;
+    }
+
+    /**
+     * A loader supplied by the autograder. Like the loader <tt>Coff</tt>
+     * builds around one, it owns the file it was supplied for.
+     */
+    private static class SuppliedCoff extends Coff {
+	/**
+	 * Allocate a loader using the sections of a supplied loader.
+	 *
+	 * @param	coff	the loader supplied by the autograder.
+	 * @param	file	the file it was supplied for.
+	 */
+	SuppliedCoff(Coff coff, OpenFile file) {
+	    this.file = file;
+
+	    entryPoint = coff.getEntryPoint();
+	    sections = new CoffSection[coff.getNumSections()];
+	    for (int s=0; s<sections.length; s++)
+		sections[s] = coff.getSection(s);
+	}
+
+	public int getEntryPoint() {
+	    Lib.assertTrue(file != null);
+
+	    return entryPoint;
+	}
+
+	public void close() {
+	    file.close();
+	    file = null;
+
+	    sections = null;
+	}
+
+	private OpenFile file;
+    }
+
+    /**
+     * A section of a COFF executable held in memory.
+     */
+    private static class CachedSection extends CoffSection {
+	/**
+	 * Parse a section header.
+	 *
+	 * @param	coff		the executable.
+	 * @param	contents	the contents of the executable file.
+	 * @param	headerOffset	the offset of the section header.
+	 * @exception	EOFException	if the section is corrupt.
+	 */
+	CachedSection(Coff coff, byte[] contents, int headerOffset)
+	    throws EOFException {
+	    super(coff, null, false, false, 0, 0);
+
+	    this.contents = contents;
+
+	    if (headerOffset+headerLength > contents.length) {
+		Lib.debug(dbgCache, "\tsection header truncated");
+		throw new EOFException();
+	    }
+
+	    name = Lib.bytesToString(contents, headerOffset, 8);
+	    int vaddr = Lib.bytesToInt(contents, headerOffset+12);
+	    size = Lib.bytesToInt(contents, headerOffset+16);
+	    contentOffset = Lib.bytesToInt(contents, headerOffset+20);
+	    int numRelocations =
+		Lib.bytesToUnsignedShort(contents, headerOffset+32);
+	    int flags = Lib.bytesToInt(contents, headerOffset+36);
+
+	    switch (flags & 0x0FFF) {
+	    case 0x0020:
+		executable = true;
+		readOnly = true;
+		initialized = true;
+		break;
+	    case 0x0040:
+		readOnly = false;
+		initialized = true;
+		break;
+	    case 0x0080:
+		readOnly = false;
+		initialized = false;
+		break;
+	    case 0x0100:
+		readOnly = true;
+		initialized = true;
+		break;
+	    default:
+		Lib.debug(dbgCache, "\tinvalid section flags: " + flags);
+		throw new EOFException();
+	    }
+
+	    if (numRelocations != 0 || vaddr%Processor.pageSize != 0 ||
+		size < 0 ||
+		initialized && (contentOffset < 0 ||
+				contentOffset+size > contents.length)) {
+		Lib.debug(dbgCache, "\tinvalid section " + name);
+		throw new EOFException();
+	    }
+
+	    numPages = Lib.divRoundUp(size, Processor.pageSize);
+	    firstVPN = vaddr / Processor.pageSize;
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    int pageSize = Processor.pageSize;
+	    byte[] memory = Machine.processor().getMemory();
+	    int paddr = ppn*pageSize;
+	    int initlen;
+
+	    if (!initialized)
+		initlen = 0;
+	    else if (spn == numPages-1)
+		initlen = size - spn*pageSize;
+	    else
+		initlen = pageSize;
+
+	    System.arraycopy(contents, contentOffset + spn*pageSize,
+			     memory, paddr, initlen);
+	    Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	}
+
+	private byte[] contents;
+	private int contentOffset, size;
+    }
+
+    private UserKernel kernel;
+    private FileSystem fileSystem;
+
+    /** Guards <tt>executables</tt> and <tt>numInvalidations</tt>. */
+    private Lock lock = new Lock();
+    /** The number of times a file has been created or removed. */
+    private int numInvalidations = 0;
+    /** The parsed executables, least recently loaded first. */
+    private LinkedHashMap<String, CachedCoff> executables =
+	new LinkedHashMap<String, CachedCoff>(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<String, CachedCoff>
+						eldest) {
+		return size() > maxExecutables;
+	    }
+	};
+
+    /** The number of executables to keep in memory. */
+    private static final int maxExecutables = 16;
+
+    private static final char dbgCache = 'e';
+}
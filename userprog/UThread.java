@@ -39,8 +39,7 @@ public class UThread extends KThread {
     protected void saveState() {
 	process.saveState();
 
-	for (int i=0; i<Processor.numUserRegisters; i++)
-	    userRegisters[i] = Machine.processor().readRegister(i);
+	Machine.processor().readRegisters(userRegisters);
 
 	super.saveState();
     }
@@ -51,8 +50,7 @@ public class UThread extends KThread {
     protected void restoreState() {
 	super.restoreState();
 	
-	for (int i=0; i<Processor.numUserRegisters; i++)
-	    Machine.processor().writeRegister(i, userRegisters[i]);
+	Machine.processor().writeRegisters(userRegisters);
 	
 	process.restoreState();
     }
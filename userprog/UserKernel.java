@@ -17,12 +17,23 @@ public class UserKernel extends ThreadedKernel {
 
     /**
      * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * processor's exception handler. If
+     * <tt>UserKernel.cacheExecutables</tt> is set, or the file system is a
+     * <tt>CachingFileSystem</tt>, the file system is wrapped in an
+     * <tt>ExecutableCache</tt>.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	// Coff refuses to read from a cache, so a buffer cache needs this too
+	if (fileSystem instanceof CachingFileSystem ||
+	    fileSystem != null &&
+	    Config.getBoolean("UserKernel.cacheExecutables", false)) {
+	    executableCache = new ExecutableCache(this, fileSystem);
+	    fileSystem = executableCache;
+	}
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -61,6 +72,16 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Called by the executable cache when an executable it had cached is
+     * created or removed. Does nothing here; a kernel that keeps state
+     * derived from executables can override this to discard it.
+     *
+     * @param	name	the name of the executable.
+     */
+    protected void executableChanged(String name) {
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -110,6 +131,12 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /**
+     * The executable cache wrapping the file system, or <tt>null</tt> if
+     * executables are not cached.
+     */
+    public static ExecutableCache executableCache = null;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -89,13 +89,39 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
+	byte[] memory = Machine.processor().getMemory();
+
+	// search for the null terminator in place, a page at a time
+	int length = 0;
+	
+	while (length <= maxLength) {
+	    int paddr = translate(vaddr+length, false);
+	    if (paddr < 0)
+		return null;
+
+	    int end = paddr + Math.min(maxLength+1-length,
+				       pageSize - paddr%pageSize);
+	    int i = paddr;
+	    while (i < end && memory[i] != 0)
+		i++;
+
+	    // a string within one page can be converted in place
+	    if (i < end && length == 0) {
+		String string = new String(memory, paddr, i-paddr);
+		unpin(paddr);
+		return string;
+	    }
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	    unpin(paddr);
+	    length += i-paddr;
 
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
+	    if (i < end) {
+		byte[] bytes = new byte[length];
+		if (readVirtualMemory(vaddr, bytes) != length)
+		    return null;
+		
+		return new String(bytes);
+	    }
 	}
 
 	return null;
@@ -132,13 +158,18 @@ public class UserProcess {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	int amount = 0;
+	while (amount < length) {
+	    int paddr = translate(vaddr+amount, false);
+	    if (paddr < 0)
+		break;
+
+	    int count = Math.min(length-amount, pageSize - paddr%pageSize);
+	    System.arraycopy(memory, paddr, data, offset+amount, count);
+	    unpin(paddr);
+	    amount += count;
+	}
 
 	return amount;
     }
@@ -175,17 +206,136 @@ public class UserProcess {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = 0;
+	while (amount < length) {
+	    int paddr = translate(vaddr+amount, true);
+	    if (paddr < 0)
+		break;
+
+	    int count = Math.min(length-amount, pageSize - paddr%pageSize);
+	    System.arraycopy(data, offset+amount, memory, paddr, count);
+	    unpin(paddr);
+	    amount += count;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Read data from a file directly into this process's virtual memory,
+     * without an intermediate buffer. Stops at the first page that cannot be
+     * written, or when the file returns fewer bytes than requested.
+     *
+     * @param	file	the file to read from.
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	length	the number of bytes to transfer.
+     * @return	the number of bytes transferred, or -1 if the file could not
+     *		be read at all.
+     */
+    public int readFileToVirtualMemory(OpenFile file, int vaddr, int length) {
+	Lib.assertTrue(length >= 0);
+
+	byte[] memory = Machine.processor().getMemory();
+
+	int amount = 0;
+	while (amount < length) {
+	    int paddr = translate(vaddr+amount, true);
+	    if (paddr < 0)
+		break;
+
+	    int count = Math.min(length-amount, pageSize - paddr%pageSize);
+	    int bytesRead = file.read(memory, paddr, count);
+	    unpin(paddr);
+	    if (bytesRead < 0)
+		return (amount == 0) ? -1 : amount;
+
+	    amount += bytesRead;
+	    if (bytesRead < count)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write data from this process's virtual memory directly to a file,
+     * without an intermediate buffer. Stops at the first page that cannot be
+     * read, or when the file accepts fewer bytes than requested.
+     *
+     * @param	file	the file to write to.
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	length	the number of bytes to transfer.
+     * @return	the number of bytes transferred, or -1 if the file could not
+     *		be written at all.
+     */
+    public int writeVirtualMemoryToFile(OpenFile file, int vaddr, int length) {
+	Lib.assertTrue(length >= 0);
+
+	byte[] memory = Machine.processor().getMemory();
+
+	int amount = 0;
+	while (amount < length) {
+	    int paddr = translate(vaddr+amount, false);
+	    if (paddr < 0)
+		break;
+
+	    int count = Math.min(length-amount, pageSize - paddr%pageSize);
+	    int bytesWritten = file.write(memory, paddr, count);
+	    unpin(paddr);
+	    if (bytesWritten < 0)
+		return (amount == 0) ? -1 : amount;
+
+	    amount += bytesWritten;
+	    if (bytesWritten < count)
+		break;
+	}
 
 	return amount;
     }
 
+    /**
+     * Translate a virtual address for a transfer made by the kernel on behalf
+     * of this process, setting the page's used bit, and its dirty bit if the
+     * kernel is writing. The physical page must stay mapped until the caller
+     * passes the address to <tt>unpin()</tt>.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	writing	<tt>true</tt> if the kernel will write to the page.
+     * @return	the physical address, or -1 if the page is not mapped, or is
+     *		read-only and <i>writing</i> is <tt>true</tt>.
+     */
+    protected int translate(int vaddr, boolean writing) {
+	if (vaddr < 0)
+	    return -1;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= pageTable.length)
+	    return -1;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid || (writing && entry.readOnly))
+	    return -1;
+
+	if (entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+	    return -1;
+
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	return entry.ppn*pageSize + Processor.offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Called when a transfer is done with a physical address returned by
+     * <tt>translate()</tt>. Pages never move here, so this does nothing.
+     *
+     * @param	paddr	the physical address.
+     */
+    protected void unpin(int paddr) {
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -199,19 +349,28 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
-	    return false;
+	if (UserKernel.executableCache != null) {
+	    coff = UserKernel.executableCache.load(name);
+	    if (coff == null) {
+		Lib.debug(dbgProcess, "\tcoff load failed");
+		return false;
+	    }
 	}
+	else {
+	    OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	    if (executable == null) {
+		Lib.debug(dbgProcess, "\topen failed");
+		return false;
+	    }
 
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
-	    Lib.debug(dbgProcess, "\tcoff load failed");
-	    return false;
+	    try {
+		coff = new Coff(executable);
+	    }
+	    catch (EOFException e) {
+		executable.close();
+		Lib.debug(dbgProcess, "\tcoff load failed");
+		return false;
+	    }
 	}
 
 	// make sure the sections are contiguous and start at page 0
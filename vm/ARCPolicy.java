@@ -0,0 +1,147 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The adaptive replacement cache of Megiddo and Modha. Resident pages are
+ * split between <i>T1</i>, pages referenced once since they were brought in,
+ * and <i>T2</i>, pages referenced again. Ghost lists <i>B1</i> and
+ * <i>B2</i> remember pages recently evicted from each. A fault on a page in
+ * <i>B1</i> means <i>T1</i> is too small, and a fault on a page in
+ * <i>B2</i> means <i>T2</i> is; the target size of <i>T1</i> moves
+ * accordingly, so the policy tunes itself between recency and frequency.
+ *
+ * <p>
+ * References are only visible to the kernel as TLB refills, so those are what
+ * promote a page from <i>T1</i> to <i>T2</i>.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new ARC policy.
+     */
+    public ARCPolicy() {
+    }
+
+    public void initialize(int numPhysPages) {
+	FrameList.Links links = new FrameList.Links(numPhysPages);
+	t1 = new FrameList(links);
+	t2 = new FrameList(links);
+	entries = new TranslationEntry[numPhysPages];
+
+	capacity = numPhysPages;
+    }
+
+    public void pageIn(int ppn, TranslationEntry entry) {
+	// adapt now if there was no eviction to adapt for
+	if (promoted != entry)
+	    adapt(entry);
+
+	entries[ppn] = entry;
+
+	if (promoted == entry) {
+	    t2.add(ppn);
+	}
+	else {
+	    t1.add(ppn);
+
+	    // keep the ghost lists from outgrowing the cache
+	    while (t1.size() + b1.size() > capacity && !b1.isEmpty())
+		removeOldest(b1);
+	    while (t1.size() + t2.size() + b1.size() + b2.size() > 2*capacity
+		   && !b2.isEmpty())
+		removeOldest(b2);
+	}
+
+	promoted = null;
+    }
+
+    public void reference(int ppn) {
+	if (t1.contains(ppn)) {
+	    t1.remove(ppn);
+	    t2.add(ppn);
+	}
+	else if (t2.contains(ppn)) {
+	    t2.remove(ppn);
+	    t2.add(ppn);
+	}
+    }
+
+    public void free(int ppn) {
+	if (t1.contains(ppn))
+	    t1.remove(ppn);
+	else if (t2.contains(ppn))
+	    t2.remove(ppn);
+
+	entries[ppn] = null;
+    }
+
+    public int chooseVictim(TranslationEntry incoming) {
+	boolean inB2 = b2.contains(incoming);
+
+	adapt(incoming);
+
+	int ppn = -1;
+	if (t1.size() > 0 &&
+	    (t1.size() > target || (inB2 && t1.size() == target)))
+	    ppn = t1.firstEvictable();
+	if (ppn == -1)
+	    ppn = t2.firstEvictable();
+	if (ppn == -1)
+	    ppn = t1.firstEvictable();
+	if (ppn == -1)
+	    return -1;
+
+	if (t1.contains(ppn)) {
+	    t1.remove(ppn);
+	    b1.add(entries[ppn]);
+	}
+	else {
+	    t2.remove(ppn);
+	    b2.add(entries[ppn]);
+	}
+
+	entries[ppn] = null;
+	return ppn;
+    }
+
+    /**
+     * If the specified page is on a ghost list, move the target size of
+     * <i>T1</i> towards the list it was found on, and remember that it should
+     * go on <i>T2</i> when it is brought in.
+     */
+    private void adapt(TranslationEntry entry) {
+	if (b1.remove(entry)) {
+	    target = Math.min(capacity,
+			      target + Math.max(b2.size()/(b1.size()+1), 1));
+	    promoted = entry;
+	}
+	else if (b2.remove(entry)) {
+	    target = Math.max(0,
+			      target - Math.max(b1.size()/(b2.size()+1), 1));
+	    promoted = entry;
+	}
+    }
+
+    private static void removeOldest(LinkedHashSet<TranslationEntry> ghosts) {
+	Iterator<TranslationEntry> oldest = ghosts.iterator();
+	oldest.next();
+	oldest.remove();
+    }
+
+    private FrameList t1, t2;
+    /** The pages recently evicted from <i>T1</i> and <i>T2</i>, oldest first. */
+    private LinkedHashSet<TranslationEntry> b1 =
+	new LinkedHashSet<TranslationEntry>(),
+	b2 = new LinkedHashSet<TranslationEntry>();
+    /** The page table entry of each resident page. */
+    private TranslationEntry[] entries;
+    /** The page that <tt>adapt()</tt> found on a ghost list, if any. */
+    private TranslationEntry promoted = null;
+
+    private int capacity;
+    /** The target size of <i>T1</i>. */
+    private int target = 0;
+}
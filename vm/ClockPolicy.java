@@ -0,0 +1,51 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm: a hand sweeps over physical memory, giving each page
+ * whose <tt>used</tt> bit is set a second chance, and evicting the first
+ * page whose bit is clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(int numPhysPages) {
+	this.numPhysPages = numPhysPages;
+    }
+
+    public void pageIn(int ppn, TranslationEntry entry) {
+    }
+
+    public void reference(int ppn) {
+    }
+
+    public void free(int ppn) {
+    }
+
+    public int chooseVictim(TranslationEntry incoming) {
+	// two sweeps: the first may only clear used bits
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!VMKernel.canEvict(ppn))
+		continue;
+
+	    TranslationEntry entry = VMKernel.getEntry(ppn);
+	    if (entry.used)
+		entry.used = false;
+	    else
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private int numPhysPages;
+    private int hand = 0;
+}
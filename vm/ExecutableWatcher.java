@@ -0,0 +1,38 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A file system that tells a <tt>VMKernel</tt> about every file created or
+ * removed through it, so that pages shared between the processes running an
+ * executable are never reused once the file has changed. All requests are
+ * passed on to the underlying file system.
+ */
+class ExecutableWatcher implements FileSystem {
+    /**
+     * Allocate a new executable watcher.
+     *
+     * @param	kernel		the kernel to notify when a file changes.
+     * @param	fileSystem	the file system to pass requests on to.
+     */
+    ExecutableWatcher(VMKernel kernel, FileSystem fileSystem) {
+	this.kernel = kernel;
+	this.fileSystem = fileSystem;
+    }
+
+    public OpenFile open(String name, boolean create) {
+	if (create)
+	    kernel.executableChanged(name);
+
+	return fileSystem.open(name, create);
+    }
+
+    public boolean remove(String name) {
+	kernel.executableChanged(name);
+
+	return fileSystem.remove(name);
+    }
+
+    private VMKernel kernel;
+    private FileSystem fileSystem;
+}
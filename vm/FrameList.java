@@ -0,0 +1,134 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An ordered list of physical page numbers, from least to most recently
+ * inserted, supporting constant-time insertion, removal, and membership
+ * tests. A page can be on at most one <tt>FrameList</tt> sharing the same
+ * link arrays, which is how the replacement policies keep their resident
+ * lists apart.
+ */
+class FrameList {
+    /**
+     * Allocate a new list.
+     *
+     * @param	links	the links shared by all the lists a page can move
+     *			between.
+     */
+    FrameList(Links links) {
+	this.links = links;
+    }
+
+    /**
+     * Append a page to the most recent end of this list.
+     *
+     * @param	ppn	a page that is on no list.
+     */
+    void add(int ppn) {
+	Lib.assertTrue(links.list[ppn] == null);
+
+	links.list[ppn] = this;
+	links.prev[ppn] = tail;
+	links.next[ppn] = -1;
+
+	if (tail == -1)
+	    head = ppn;
+	else
+	    links.next[tail] = ppn;
+
+	tail = ppn;
+	size++;
+    }
+
+    /**
+     * Remove a page from this list.
+     *
+     * @param	ppn	a page on this list.
+     */
+    void remove(int ppn) {
+	Lib.assertTrue(links.list[ppn] == this);
+
+	int prev = links.prev[ppn], next = links.next[ppn];
+
+	if (prev == -1)
+	    head = next;
+	else
+	    links.next[prev] = next;
+
+	if (next == -1)
+	    tail = prev;
+	else
+	    links.prev[next] = prev;
+
+	links.list[ppn] = null;
+	size--;
+    }
+
+    /**
+     * Test whether a page is on this list.
+     */
+    boolean contains(int ppn) {
+	return links.list[ppn] == this;
+    }
+
+    /**
+     * Return the least recently inserted page.
+     *
+     * @return	the page, or -1 if the list is empty.
+     */
+    int first() {
+	return head;
+    }
+
+    /**
+     * Return the page inserted after the specified page.
+     *
+     * @param	ppn	a page on this list.
+     * @return	the next page, or -1 if <i>ppn</i> is the most recent.
+     */
+    int next(int ppn) {
+	Lib.assertTrue(links.list[ppn] == this);
+
+	return links.next[ppn];
+    }
+
+    /**
+     * Return the least recently inserted page that can be evicted.
+     *
+     * @return	the page, or -1 if there is none.
+     */
+    int firstEvictable() {
+	for (int ppn=head; ppn!=-1; ppn=links.next[ppn]) {
+	    if (VMKernel.canEvict(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the number of pages on this list.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * The links of every page, shared by a set of lists.
+     */
+    static class Links {
+	Links(int numPhysPages) {
+	    list = new FrameList[numPhysPages];
+	    prev = new int[numPhysPages];
+	    next = new int[numPhysPages];
+	}
+
+	FrameList[] list;
+	int[] prev, next;
+    }
+
+    private Links links;
+    private int head = -1, tail = -1;
+    private int size = 0;
+}
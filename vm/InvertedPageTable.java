@@ -0,0 +1,137 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A hashed inverted page table: one entry per mapping of a virtual page
+ * into physical memory, recording the process and virtual page, and hash
+ * chains for finding the physical page mapped at a given (process, virtual
+ * page) pair. Lookups take constant time no matter how many processes are
+ * running. A physical page shared by several processes has one entry for
+ * each of them.
+ */
+class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table with no pages mapped.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    InvertedPageTable(int numPhysPages) {
+	int numBuckets = 1;
+	while (numBuckets < 2*numPhysPages)
+	    numBuckets *= 2;
+
+	buckets = new int[numBuckets];
+	for (int i=0; i<numBuckets; i++)
+	    buckets[i] = -1;
+
+	grow(numPhysPages);
+    }
+
+    /**
+     * Record that a physical page now holds the specified virtual page.
+     *
+     * @param	processID	the ID of the process mapping the page.
+     * @param	vpn		the virtual page number, which the process must
+     *				not already have mapped.
+     * @param	ppn		the physical page number.
+     */
+    void insert(int processID, int vpn, int ppn) {
+	Lib.assertTrue(lookup(processID, vpn) == -1);
+
+	if (freeEntries == -1)
+	    grow(2*ppns.length);
+
+	int entry = freeEntries;
+	freeEntries = next[entry];
+
+	int bucket = hash(processID, vpn);
+
+	processIDs[entry] = processID;
+	vpns[entry] = vpn;
+	ppns[entry] = ppn;
+	next[entry] = buckets[bucket];
+	buckets[bucket] = entry;
+    }
+
+    /**
+     * Remove the mapping of a virtual page.
+     *
+     * @param	processID	the ID of the process mapping the page.
+     * @param	vpn		the virtual page number, which must be mapped.
+     */
+    void remove(int processID, int vpn) {
+	int bucket = hash(processID, vpn);
+
+	int prev = -1;
+	int entry = buckets[bucket];
+	while (vpns[entry] != vpn || processIDs[entry] != processID) {
+	    prev = entry;
+	    entry = next[entry];
+	    Lib.assertTrue(entry != -1);
+	}
+
+	if (prev == -1)
+	    buckets[bucket] = next[entry];
+	else
+	    next[prev] = next[entry];
+
+	next[entry] = freeEntries;
+	freeEntries = entry;
+    }
+
+    /**
+     * Find the physical page holding the specified virtual page.
+     *
+     * @param	processID	the ID of the process mapping the page.
+     * @param	vpn		the virtual page number.
+     * @return	the physical page number, or -1 if the page is not in memory.
+     */
+    int lookup(int processID, int vpn) {
+	int entry = buckets[hash(processID, vpn)];
+	for (; entry!=-1; entry=next[entry]) {
+	    if (vpns[entry] == vpn && processIDs[entry] == processID)
+		return ppns[entry];
+	}
+
+	return -1;
+    }
+
+    private int hash(int processID, int vpn) {
+	int key = (processID * 0x9E3779B1) ^ vpn;
+	key ^= key >>> 16;
+	return key & (buckets.length-1);
+    }
+
+    /**
+     * Enlarge the entry arrays, adding the new entries to the free list.
+     */
+    private void grow(int capacity) {
+	int oldCapacity = (ppns == null) ? 0 : ppns.length;
+
+	processIDs = copyOf(processIDs, capacity);
+	vpns = copyOf(vpns, capacity);
+	ppns = copyOf(ppns, capacity);
+	next = copyOf(next, capacity);
+
+	for (int entry=capacity-1; entry>=oldCapacity; entry--) {
+	    next[entry] = freeEntries;
+	    freeEntries = entry;
+	}
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+	int[] copy = new int[length];
+	if (array != null)
+	    System.arraycopy(array, 0, copy, 0, array.length);
+	return copy;
+    }
+
+    /** The first entry on each hash chain, or -1. */
+    private int[] buckets;
+    private int[] processIDs, vpns, ppns;
+    /** The next entry on the same hash chain or free list, or -1. */
+    private int[] next;
+    /** The first unused entry, or -1. */
+    private int freeEntries = -1;
+}
@@ -0,0 +1,63 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Decides which physical page <tt>VMKernel</tt> evicts when memory is full.
+ * The policy is chosen by <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * A policy sees the core map only through these calls. Every call is made
+ * either with <tt>VMKernel.memoryLock</tt> held or with interrupts disabled;
+ * <tt>reference()</tt> is also made with interrupts disabled on a TLB miss,
+ * without the lock. That is safe only because the simulated machine has one
+ * processor and a policy never enables interrupts, so no other call can run
+ * while one is in progress. A page is identified by its
+ * physical page number while it is in memory, and by its page table entry,
+ * which lasts as long as its process, while it is not.
+ */
+public interface PageReplacementPolicy {
+    /**
+     * Prepare to manage the specified number of physical pages, all of which
+     * are initially free.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public void initialize(int numPhysPages);
+
+    /**
+     * Called when a virtual page is brought into memory.
+     *
+     * @param	ppn	the physical page now holding it.
+     * @param	entry	the page table entry mapping it.
+     */
+    public void pageIn(int ppn, TranslationEntry entry);
+
+    /**
+     * Called when the kernel refills the TLB with, or itself accesses, a
+     * page that was already in memory.
+     *
+     * @param	ppn	the physical page referenced.
+     */
+    public void reference(int ppn);
+
+    /**
+     * Called when a physical page is freed other than by eviction, because
+     * its process is exiting.
+     *
+     * @param	ppn	the physical page freed.
+     */
+    public void free(int ppn);
+
+    /**
+     * Choose a page to evict so that another can be brought in. The chosen
+     * page is evicted immediately; the policy should stop tracking it as
+     * resident. Only pages for which <tt>VMKernel.canEvict()</tt> returns
+     * <tt>true</tt> may be chosen.
+     *
+     * @param	incoming	the page table entry of the page that will
+     *				replace the victim.
+     * @return	the physical page to evict, or -1 if no page can be evicted.
+     */
+    public int chooseVictim(TranslationEntry incoming);
+}
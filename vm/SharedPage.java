@@ -0,0 +1,32 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A page of an executable's COFF sections that can be mapped by every
+ * process running that executable. All of them use the same
+ * <tt>TranslationEntry</tt>, so the page is brought in or evicted for all of
+ * them at once. The entry is always read-only; a process that writes to a
+ * page of a writable section gets its own copy.
+ */
+class SharedPage {
+    /**
+     * Allocate a new shared page, not in memory.
+     *
+     * @param	executable	the name of the executable.
+     * @param	vpn		the virtual page number of the page.
+     */
+    SharedPage(String executable, int vpn) {
+	this.executable = executable;
+	entry = new TranslationEntry(vpn, -1, false, true, false, false);
+    }
+
+    /** The name of the executable this page belongs to. */
+    final String executable;
+    /** The translation used by every process mapping this page. */
+    final TranslationEntry entry;
+    /** The processes mapping this page. */
+    LinkedList<VMProcess> sharers = new LinkedList<VMProcess>();
+}
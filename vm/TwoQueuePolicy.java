@@ -0,0 +1,176 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The 2Q algorithm of Johnson and Shasha. A page brought in for the first
+ * time goes on a FIFO queue, <i>A1in</i>, and is remembered on a ghost
+ * queue, <i>A1out</i>, after it is evicted from there. Only a page faulted
+ * back in while it is still on <i>A1out</i> is promoted to the main LRU
+ * queue, <i>Am</i>. A scan over a large array therefore only cycles through
+ * <i>A1in</i>, and does not flush pages with real locality out of <i>Am</i>.
+ *
+ * <p>
+ * References are visible to the kernel as TLB refills, which move a page to
+ * the front of <i>Am</i>, and as <tt>used</tt> bits, which give a page at the
+ * back of <i>Am</i> a second chance. A page that has not been referenced
+ * since it was brought in is never chosen while any other page can be: its
+ * process has not yet made the access that faulted it in.
+ */
+public class TwoQueuePolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new 2Q policy.
+     */
+    public TwoQueuePolicy() {
+    }
+
+    public void initialize(int numPhysPages) {
+	FrameList.Links links = new FrameList.Links(numPhysPages);
+	a1in = new FrameList(links);
+	am = new FrameList(links);
+	entries = new TranslationEntry[numPhysPages];
+	fresh = new boolean[numPhysPages];
+
+	maxA1in = Math.min(numPhysPages, Math.max(minA1in, numPhysPages/4));
+	maxA1out = Math.max(1, numPhysPages/2);
+    }
+
+    public void pageIn(int ppn, TranslationEntry entry) {
+	entries[ppn] = entry;
+	fresh[ppn] = true;
+
+	if (a1out.remove(entry))
+	    am.add(ppn);
+	else
+	    a1in.add(ppn);
+    }
+
+    public void reference(int ppn) {
+	fresh[ppn] = false;
+
+	if (am.contains(ppn)) {
+	    am.remove(ppn);
+	    am.add(ppn);
+	}
+    }
+
+    public void free(int ppn) {
+	if (a1in.contains(ppn))
+	    a1in.remove(ppn);
+	else if (am.contains(ppn))
+	    am.remove(ppn);
+
+	entries[ppn] = null;
+    }
+
+    public int chooseVictim(TranslationEntry incoming) {
+	int ppn = -1;
+
+	if (a1in.size() > maxA1in || am.size() == 0)
+	    ppn = chooseFromA1in();
+	if (ppn == -1)
+	    ppn = chooseFromAm();
+	if (ppn == -1)
+	    ppn = chooseFromA1in();
+
+	// only pages not yet referenced are left, so take the oldest
+	if (ppn == -1)
+	    ppn = a1in.firstEvictable();
+	if (ppn == -1)
+	    ppn = am.firstEvictable();
+	if (ppn == -1)
+	    return -1;
+
+	if (a1in.contains(ppn)) {
+	    a1in.remove(ppn);
+	    
+	    a1out.add(entries[ppn]);
+	    if (a1out.size() > maxA1out) {
+		Iterator<TranslationEntry> oldest = a1out.iterator();
+		oldest.next();
+		oldest.remove();
+	    }
+	}
+	else {
+	    am.remove(ppn);
+	}
+
+	entries[ppn] = null;
+	return ppn;
+    }
+
+    /**
+     * Return the oldest page on <i>A1in</i> that can be evicted and has been
+     * referenced since it was brought in. Other references to pages on
+     * <i>A1in</i> are ignored.
+     *
+     * @return	the page, or -1 if there is none.
+     */
+    private int chooseFromA1in() {
+	for (int ppn=a1in.first(); ppn!=-1; ppn=a1in.next(ppn)) {
+	    if (!VMKernel.canEvict(ppn))
+		continue;
+
+	    if (entries[ppn].used)
+		fresh[ppn] = false;
+	    if (!fresh[ppn])
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the least recently used page on <i>Am</i> that can be evicted
+     * and has been referenced since it was brought in. A page whose
+     * <tt>used</tt> bit is set is moved to the front instead, after clearing
+     * the bit.
+     *
+     * @return	the page, or -1 if there is none.
+     */
+    private int chooseFromAm() {
+	int ppn = am.first();
+	while (ppn != -1) {
+	    int next = am.next(ppn);
+
+	    if (VMKernel.canEvict(ppn)) {
+		TranslationEntry entry = entries[ppn];
+		if (entry.used) {
+		    entry.used = false;
+		    fresh[ppn] = false;
+
+		    am.remove(ppn);
+		    am.add(ppn);
+		}
+		else if (!fresh[ppn]) {
+		    return ppn;
+		}
+	    }
+
+	    ppn = next;
+	}
+
+	return -1;
+    }
+
+    private FrameList a1in, am;
+    /** The pages recently evicted from <i>A1in</i>, oldest first. */
+    private LinkedHashSet<TranslationEntry> a1out =
+	new LinkedHashSet<TranslationEntry>();
+    /** The page table entry of each resident page. */
+    private TranslationEntry[] entries;
+    /** Whether each resident page is unreferenced since it was brought in. */
+    private boolean[] fresh;
+
+    private int maxA1in, maxA1out;
+
+    /**
+     * The fewest pages <i>A1in</i> may hold before it gives up pages: room
+     * for the code, data, and stack pages of a process that has just
+     * started.
+     */
+    private static final int minA1in = 3;
+}
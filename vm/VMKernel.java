@@ -5,6 +5,12 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -17,10 +23,42 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the core map and inverted page table,
+     * with every physical page free, the page replacement policy named by
+     * <tt>VMKernel.replacementPolicy</tt>, and an empty swap file named by
+     * <tt>VMKernel.swapFile</tt>. The file system is wrapped in an
+     * <tt>ExecutableWatcher</tt>, so that shared pages are dropped whenever
+     * their executable is created or removed.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	memoryLock = new Lock();
+
+	if (fileSystem != null)
+	    fileSystem = new ExecutableWatcher(this, fileSystem);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	frames = new Frame[numPhysPages];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    frames[ppn] = new Frame(ppn);
+	    freeFrames.add(frames[ppn]);
+	}
+	invertedPageTable = new InvertedPageTable(numPhysPages);
+
+	String policyName = Config.getString("VMKernel.replacementPolicy",
+					     "nachos.vm.ClockPolicy");
+	policy = (PageReplacementPolicy) Lib.constructObject(policyName);
+	policy.initialize(numPhysPages);
+
+	taggedTLB = Config.getBoolean("VMKernel.taggedTLB", false);
+	addressSpaceOwners = new VMProcess[numAddressSpaces];
+
+	swapName = Config.getString("VMKernel.swapFile", "nachos.swp");
+	// discard a swap file left behind by a run that halted abruptly
+	ThreadedKernel.fileSystem.remove(swapName);
+	swapFile = ThreadedKernel.fileSystem.open(swapName, true);
+	Lib.assertTrue(swapFile != null, "could not open swap file");
     }
 
     /**
@@ -41,9 +79,572 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (swapFile != null) {
+	    swapFile.close();
+	    ThreadedKernel.fileSystem.remove(swapName);
+	}
+
 	super.terminate();
     }
 
+    /**
+     * Stop sharing the pages of an executable that has been created or
+     * removed, so that the next process to run it loads the new file. This
+     * is called for every file created or removed, whether or not it is an
+     * executable, and whether or not executables are cached. Pages
+     * no process is using are freed; processes already running the old
+     * executable keep their pages.
+     *
+     * @param	name	the name of the executable.
+     */
+    protected void executableChanged(String name) {
+	memoryLock.acquire();
+
+	SharedPage[] pages = sharedPages.remove(name);
+	if (pages != null) {
+	    for (SharedPage page : pages) {
+		if (page != null && page.sharers.isEmpty() && page.entry.valid &&
+		    frames[page.entry.ppn].pinCount == 0)
+		    freeFrame(frames[page.entry.ppn]);
+	    }
+	}
+
+	memoryLock.release();
+    }
+
+    /**
+     * Allocate a physical page for the specified virtual page of a process,
+     * evicting another page if none is free. The caller must hold
+     * <tt>memoryLock</tt>. The page is returned pinned.
+     *
+     * @param	process	the process the page will belong to.
+     * @param	vpn	the virtual page the page will hold.
+     * @return	the page, or <tt>null</tt> if every page is in use and none
+     *		can be evicted.
+     */
+    static Frame allocateFrame(VMProcess process, int vpn) {
+	Frame frame = takeFrame(process.getEntry(vpn));
+	if (frame == null)
+	    return null;
+
+	frame.process = process;
+	frame.vpn = vpn;
+
+	invertedPageTable.insert(process.getProcessID(), vpn, frame.ppn);
+
+	policy.pageIn(frame.ppn, process.getEntry(vpn));
+
+	return frame;
+    }
+
+    /**
+     * Allocate a physical page for a shared page, evicting another page if
+     * none is free, and map it into every process sharing the page. The
+     * caller must hold <tt>memoryLock</tt>. The page is returned pinned.
+     *
+     * @param	page	the shared page, which must not be in memory.
+     * @return	the page, or <tt>null</tt> if every page is in use and none
+     *		can be evicted.
+     */
+    static Frame allocateSharedFrame(SharedPage page) {
+	Frame frame = takeFrame(page.entry);
+	if (frame == null)
+	    return null;
+
+	frame.shared = page;
+
+	for (VMProcess sharer : page.sharers) {
+	    invertedPageTable.insert(sharer.getProcessID(), page.entry.vpn,
+				     frame.ppn);
+	}
+
+	policy.pageIn(frame.ppn, page.entry);
+
+	return frame;
+    }
+
+    /**
+     * Take a free physical page, or evict one chosen by the replacement
+     * policy.
+     *
+     * @param	incoming	the page table entry of the page that will
+     *				occupy the physical page.
+     * @return	the page, pinned, or <tt>null</tt> if none can be evicted.
+     */
+    private static Frame takeFrame(TranslationEntry incoming) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Frame frame;
+	if (!freeFrames.isEmpty()) {
+	    frame = freeFrames.removeFirst();
+	}
+	else {
+	    // the TLB may have newer used and dirty bits
+	    VMProcess.syncTLB();
+
+	    int ppn = policy.chooseVictim(incoming);
+	    if (ppn == -1)
+		return null;
+
+	    frame = frames[ppn];
+	    Lib.assertTrue(canEvict(ppn));
+
+	    if (frame.shared != null) {
+		unmapShared(frame);
+	    }
+	    else {
+		// unmap the page before writing it, so it cannot change
+		frame.process.evict(frame.vpn);
+		invertedPageTable.remove(frame.process.getProcessID(),
+					 frame.vpn);
+
+		if (frame.process.getEntry(frame.vpn).dirty)
+		    writeBack(frame);
+	    }
+
+	    frame.process = null;
+	    frame.shared = null;
+	}
+
+	frame.pinCount = 1;
+	return frame;
+    }
+
+    /**
+     * Return a physical page to the free list. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	frame	the page to free.
+     */
+    static void freeFrame(Frame frame) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	policy.free(frame.ppn);
+
+	if (frame.shared != null)
+	    unmapShared(frame);
+	else
+	    invertedPageTable.remove(frame.process.getProcessID(), frame.vpn);
+
+	frame.process = null;
+	frame.shared = null;
+	frame.pinCount = 0;
+	freeFrames.add(frame);
+    }
+
+    /**
+     * Find or create the shared page for a page of an executable's COFF
+     * sections, and add a process to the processes sharing it. The caller
+     * must hold <tt>memoryLock</tt>.
+     *
+     * @param	process		the process that will map the page.
+     * @param	executable	the name of the executable.
+     * @param	sectionPages	the number of pages in the executable's
+     *				sections.
+     * @param	vpn		the virtual page number.
+     * @return	the shared page.
+     */
+    static SharedPage attachSharedPage(VMProcess process, String executable,
+				       int sectionPages, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	// a different layout means the executable was replaced
+	SharedPage[] pages = sharedPages.get(executable);
+	if (pages == null || pages.length != sectionPages) {
+	    pages = new SharedPage[sectionPages];
+	    sharedPages.put(executable, pages);
+	}
+
+	SharedPage page = pages[vpn];
+	if (page == null) {
+	    page = new SharedPage(executable, vpn);
+	    pages[vpn] = page;
+	}
+
+	page.sharers.add(process);
+	if (page.entry.valid) {
+	    invertedPageTable.insert(process.getProcessID(), vpn,
+				     page.entry.ppn);
+	}
+
+	return page;
+    }
+
+    /**
+     * Remove a process from the processes sharing a shared page. A page
+     * still in memory stays cached for the next process to run the
+     * executable, until it is evicted. The caller must hold
+     * <tt>memoryLock</tt>, and must already have invalidated the process's
+     * TLB entries for the page.
+     *
+     * @param	process	the process that no longer maps the page.
+     * @param	page	the shared page.
+     */
+    static void detachSharedPage(VMProcess process, SharedPage page) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Lib.assertTrue(page.sharers.remove(process));
+
+	if (page.entry.valid)
+	    invertedPageTable.remove(process.getProcessID(), page.entry.vpn);
+	else if (page.sharers.isEmpty())
+	    uncache(page);
+    }
+
+    /**
+     * Turn a shared page in memory into a private page of the only process
+     * sharing it, so that the process can write to it without copying it.
+     * The page is no longer cached. The caller must hold
+     * <tt>memoryLock</tt>, must have invalidated the process's TLB entries
+     * for the page, and must already have replaced the process's page table
+     * entry with a valid entry for the same physical page.
+     *
+     * @param	frame	the physical page holding the shared page.
+     * @param	process	the only process sharing the page.
+     * @param	vpn	the virtual page number.
+     */
+    static void takeSharedFrame(Frame frame, VMProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	SharedPage page = frame.shared;
+	Lib.assertTrue(page.sharers.size() == 1 &&
+		       page.sharers.getFirst() == process);
+
+	page.sharers.clear();
+	page.entry.valid = false;
+	uncache(page);
+
+	// the inverted page table already maps the page for the process
+	policy.free(frame.ppn);
+	frame.shared = null;
+	frame.process = process;
+	frame.vpn = vpn;
+	policy.pageIn(frame.ppn, process.getEntry(vpn));
+    }
+
+    /**
+     * Remove a shared page from memory, unmapping it from every process
+     * sharing it.
+     */
+    private static void unmapShared(Frame frame) {
+	SharedPage page = frame.shared;
+
+	Lib.debug(dbgVM, "evicting shared page " + page.entry.vpn + " of " +
+		  page.executable + " from ppn " + frame.ppn);
+
+	VMProcess.invalidateTLB(frame.ppn);
+	page.entry.valid = false;
+
+	for (VMProcess sharer : page.sharers)
+	    invertedPageTable.remove(sharer.getProcessID(), page.entry.vpn);
+
+	if (page.sharers.isEmpty())
+	    uncache(page);
+    }
+
+    private static void uncache(SharedPage page) {
+	SharedPage[] pages = sharedPages.get(page.executable);
+	if (pages != null && pages[page.entry.vpn] == page)
+	    pages[page.entry.vpn] = null;
+    }
+
+    /**
+     * Assign an address space ID to a process that is about to run. A free
+     * ID is used if there is one; otherwise the ID assigned longest ago is
+     * taken from its owner, whose TLB entries are invalidated.
+     *
+     * @param	process	the process that needs an ID.
+     * @return	the ID, which is never 0.
+     */
+    static int allocateAddressSpace(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int asid = -1;
+	for (int i=1; i<numAddressSpaces; i++) {
+	    if (addressSpaceOwners[i] == null) {
+		asid = i;
+		break;
+	    }
+	}
+
+	if (asid == -1) {
+	    asid = nextAddressSpace;
+	    nextAddressSpace = nextAddressSpace % (numAddressSpaces-1) + 1;
+
+	    addressSpaceOwners[asid].loseAddressSpace();
+	}
+
+	addressSpaceOwners[asid] = process;
+
+	Machine.interrupt().restore(intStatus);
+	return asid;
+    }
+
+    /**
+     * Release the address space ID of a process that is exiting. Its TLB
+     * entries must already be invalid.
+     *
+     * @param	asid	the ID to release.
+     */
+    static void freeAddressSpace(int asid) {
+	addressSpaceOwners[asid] = null;
+    }
+
+    /**
+     * Find the physical page holding a virtual page of a process. The caller
+     * must hold <tt>memoryLock</tt> or have interrupts disabled, which is
+     * safe only because the simulated machine has one processor.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or -1 if the page is not in memory.
+     */
+    static int lookup(VMProcess process, int vpn) {
+	return invertedPageTable.lookup(process.getProcessID(), vpn);
+    }
+
+    /**
+     * Record that a page already in memory was referenced, for the
+     * replacement policy. The caller must hold <tt>memoryLock</tt> or have
+     * interrupts disabled, which is safe only because the simulated machine
+     * has one processor.
+     *
+     * @param	ppn	the physical page referenced.
+     */
+    static void reference(int ppn) {
+	policy.reference(ppn);
+    }
+
+    /**
+     * Test whether a physical page can be evicted: it holds a page of some
+     * process or a shared page, and is not pinned. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page can be evicted.
+     */
+    static boolean canEvict(int ppn) {
+	Frame frame = frames[ppn];
+	return frame.getEntry() != null && frame.pinCount == 0;
+    }
+
+    /**
+     * Return the page table entry mapping a physical page that is in use.
+     * The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the page table entry.
+     */
+    static TranslationEntry getEntry(int ppn) {
+	return frames[ppn].getEntry();
+    }
+
+    /**
+     * Write a dirty page to swap as it is evicted. Other dirty pages
+     * that are likely to be evicted soon, because they are unpinned and
+     * have not been used recently, are written in the same batch and left
+     * in memory clean. Their swap slots are allocated next to each
+     * other where possible, so that each run of adjacent slots costs a
+     * single write. The caller must hold <tt>memoryLock</tt>.
+     *
+     * <p>
+     * Every page is copied out and marked clean before the first write, so
+     * the pages left in memory can be mapped and dirtied again while the
+     * writes are in progress.
+     *
+     * @param	victim	the dirty page being evicted, already unmapped.
+     */
+    private static void writeBack(Frame victim) {
+	Frame[] cluster = new Frame[clusterPages];
+	int size = 0;
+
+	cluster[size++] = victim;
+	for (int i=0; i<frames.length && size<clusterPages; i++) {
+	    Frame frame = frames[(victim.ppn+1+i) % frames.length];
+	    if (frame == victim || frame.process == null || frame.pinCount > 0)
+		continue;
+
+	    TranslationEntry entry = frame.process.getEntry(frame.vpn);
+	    if (entry.dirty && !entry.used)
+		cluster[size++] = frame;
+	}
+
+	// pages with no swap copy yet get a run of adjacent slots
+	int unassigned = 0;
+	for (int i=0; i<size; i++) {
+	    if (cluster[i].process.getSwapSlot(cluster[i].vpn) < 0)
+		unassigned++;
+	}
+	if (unassigned > 0) {
+	    int slot = allocateSwapRun(unassigned);
+	    for (int i=0; i<size; i++) {
+		if (cluster[i].process.getSwapSlot(cluster[i].vpn) < 0)
+		    cluster[i].process.setSwapSlot(cluster[i].vpn, slot++);
+	    }
+	}
+
+	Arrays.sort(cluster, 0, size, new Comparator<Frame>() {
+		public int compare(Frame a, Frame b) {
+		    return a.process.getSwapSlot(a.vpn) -
+			b.process.getSwapSlot(b.vpn);
+		}
+	    });
+
+	byte[] memory = Machine.processor().getMemory();
+	byte[] buffer = new byte[size*pageSize];
+	int[] slots = new int[size];
+
+	for (int i=0; i<size; i++) {
+	    Frame frame = cluster[i];
+	    slots[i] = frame.process.getSwapSlot(frame.vpn);
+	    frame.process.clean(frame.vpn);
+	    System.arraycopy(memory, frame.ppn*pageSize,
+			     buffer, i*pageSize, pageSize);
+	}
+
+	for (int start=0; start<size; ) {
+	    int end = start+1;
+	    while (end < size && slots[end] == slots[start] + (end-start))
+		end++;
+
+	    int length = (end-start)*pageSize;
+
+	    Lib.debug(dbgVM, "writing " + (end-start) + " pages to swap slot "
+		      + slots[start]);
+
+	    Lib.assertTrue(swapFile.write(slots[start]*pageSize, buffer,
+					  start*pageSize, length) == length,
+			   "swap write failed");
+
+	    start = end;
+	}
+    }
+
+    /**
+     * Read a page from swap into physical memory. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	slot	the swap slot to read.
+     * @param	ppn	the physical page to read it into.
+     */
+    static void readSwap(int slot, int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Lib.debug(dbgVM, "reading swap slot " + slot + " into ppn " + ppn);
+
+	byte[] memory = Machine.processor().getMemory();
+	Lib.assertTrue(swapFile.read(slot*pageSize, memory, ppn*pageSize,
+				     pageSize) == pageSize, "swap read failed");
+    }
+
+    /**
+     * Allocate a run of adjacent free swap slots, extending the swap file if
+     * necessary.
+     *
+     * @param	count	the number of slots.
+     * @return	the first slot of the run.
+     */
+    private static int allocateSwapRun(int count) {
+	int first = swapMap.nextClearBit(0);
+	while (true) {
+	    int next = swapMap.nextSetBit(first);
+	    if (next == -1 || next-first >= count)
+		break;
+
+	    first = swapMap.nextClearBit(next);
+	}
+
+	swapMap.set(first, first+count);
+	return first;
+    }
+
+    /**
+     * Release a swap slot that is no longer needed. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	slot	the slot to free.
+     */
+    static void freeSwapSlot(int slot) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	swapMap.clear(slot);
+    }
+
+    /**
+     * A physical page, and the virtual page it currently holds.
+     */
+    static class Frame {
+	Frame(int ppn) {
+	    this.ppn = ppn;
+	}
+
+	/**
+	 * Return the page table entry mapping this page.
+	 *
+	 * @return	the entry, or <tt>null</tt> if this page is free.
+	 */
+	TranslationEntry getEntry() {
+	    if (shared != null)
+		return shared.entry;
+	    else if (process != null)
+		return process.getEntry(vpn);
+	    else
+		return null;
+	}
+
+	/** The physical page number. */
+	final int ppn;
+	/**
+	 * The process owning this page, or <tt>null</tt> if it is free or
+	 * shared.
+	 */
+	VMProcess process = null;
+	/** The shared page in this page, or <tt>null</tt> if it is not shared. */
+	SharedPage shared = null;
+	/** The virtual page number within <tt>process</tt>. */
+	int vpn;
+	/** While positive, this page must not be evicted. */
+	int pinCount = 0;
+    }
+
+    /**
+     * Protects the core map and every process's page table. A thread holding
+     * it only blocks in swap and executable file I/O, and the tables are
+     * consistent whenever it does, so the TLB miss handler can refill the TLB
+     * with a page that is already in memory by just disabling interrupts.
+     */
+    static Lock memoryLock;
+    /** The core map, indexed by physical page number. */
+    static Frame[] frames;
+    /**
+     * <tt>true</tt> if TLB entries are tagged with address space IDs, so the
+     * TLB need not be flushed on a context switch.
+     */
+    static boolean taggedTLB;
+    /** The process using each address space ID; ID 0 is never assigned. */
+    private static VMProcess[] addressSpaceOwners;
+    private static int nextAddressSpace = 1;
+    /** The number of address space IDs, as on the MIPS R3000. */
+    private static final int numAddressSpaces = 64;
+
+    /** The shared pages of each executable, indexed by virtual page. */
+    private static HashMap<String, SharedPage[]> sharedPages =
+	new HashMap<String, SharedPage[]>();
+
+    /** Finds a resident page by process and virtual page number. */
+    private static InvertedPageTable invertedPageTable;
+    private static LinkedList<Frame> freeFrames = new LinkedList<Frame>();
+    private static PageReplacementPolicy policy;
+
+    private static String swapName;
+    private static OpenFile swapFile;
+    /** The swap slots in use. */
+    private static BitSet swapMap = new BitSet();
+
+    /** The most dirty pages written to swap at once. */
+    private static final int clusterPages = 8;
+    private static final int pageSize = Processor.pageSize;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -16,39 +18,610 @@ public class VMProcess extends UserProcess {
 	super();
     }
 
+    /**
+     * Execute the specified program with the specified arguments, remembering
+     * its name so that its pages can be shared with other processes running
+     * it.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	args	the arguments to pass to the executable.
+     * @return	<tt>true</tt> if the program was successfully executed.
+     */
+    public boolean execute(String name, String[] args) {
+	executableName = name;
+
+	return super.execute(name, args);
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. Unless TLB entries are tagged
+     * with address space IDs, copies the used and dirty bits out of the TLB,
+     * since the next process will flush it.
      */
     public void saveState() {
 	super.saveState();
+
+	// interrupts are disabled here, so the core map cannot change
+	if (!VMKernel.taggedTLB)
+	    syncTLB();
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
      * <tt>UThread.restoreState()</tt>.
+     *
+     * <p>
+     * If <tt>VMKernel.taggedTLB</tt> is set, this just switches the processor
+     * to this process's address space, so any of its entries still in the TLB
+     * from the last time it ran are used again. Otherwise every TLB entry is
+     * invalidated, and this process's translations are refilled as they miss.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+
+	if (VMKernel.taggedTLB) {
+	    if (asid == 0)
+		asid = VMKernel.allocateAddressSpace(this);
+
+	    processor.setAddressSpace(asid);
+	    return;
+	}
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid) {
+		entry.valid = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. No physical memory is allocated; every page starts out
+     * invalid, and is read from its COFF section or zero-filled the first
+     * time it is touched. Once a page has been written to swap, it is read
+     * back from there instead.
+     *
+     * <p>
+     * Pages of COFF sections are shared with every other process running
+     * the same executable, through <tt>VMKernel</tt>'s cache of shared pages.
+     * Pages of writable sections are shared copy-on-write: they are mapped
+     * read-only, and the first write to one gives this process its own copy.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	sections = new CoffSection[numPages];
+	sharedPages = new SharedPage[numPages];
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+	
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
+	// the sections come first, followed by the stack and arguments
+	int sectionPages = numPages - stackPages - 1;
+
+	VMKernel.memoryLock.acquire();
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    
+	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		sections[vpn] = section;
+		sharedPages[vpn] =
+		    VMKernel.attachSharedPage(this, executableName,
+					      sectionPages, vpn);
+		pageTable[vpn] = sharedPages[vpn].entry;
+	    }
+	}
+
+	VMKernel.memoryLock.release();
+
+	// the stack and argument pages have no section, and are zero-filled
+	
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
+	VMKernel.memoryLock.acquire();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+
+	    if (sharedPages[vpn] != null) {
+		if (entry.valid)
+		    invalidateTLB(entry.ppn);
+
+		VMKernel.detachSharedPage(this, sharedPages[vpn]);
+		sharedPages[vpn] = null;
+	    }
+	    else if (entry.valid) {
+		invalidateTLB(entry.ppn);
+		entry.valid = false;
+		VMKernel.freeFrame(VMKernel.frames[entry.ppn]);
+	    }
+
+	    if (swapSlots[vpn] >= 0) {
+		VMKernel.freeSwapSlot(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+	
+	if (asid != 0) {
+	    VMKernel.freeAddressSpace(asid);
+	    asid = 0;
+	}
+
+	VMKernel.memoryLock.release();
+
+	coff.close();
     }    
 
+    /**
+     * Translate a virtual address for the kernel, paging it in first if
+     * necessary. The physical page is pinned until <tt>unpin()</tt> is
+     * called, so that it cannot be evicted while the kernel uses it.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	writing	<tt>true</tt> if the kernel will write to the page.
+     * @return	the physical address, or -1 if the address is invalid.
+     */
+    protected int translate(int vaddr, boolean writing) {
+	if (vaddr < 0)
+	    return -1;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages)
+	    return -1;
+
+	VMKernel.memoryLock.acquire();
+
+	if (writing && isCopyOnWrite(vpn) && !copyOnWrite(vpn)) {
+	    VMKernel.memoryLock.release();
+	    return -1;
+	}
+
+	TranslationEntry entry = pageTable[vpn];
+	if (writing && entry.readOnly) {
+	    VMKernel.memoryLock.release();
+	    return -1;
+	}
+
+	if (entry.valid) {
+	    VMKernel.reference(entry.ppn);
+	}
+	else if (!pageIn(vpn)) {
+	    VMKernel.memoryLock.release();
+	    return -1;
+	}
+
+	VMKernel.frames[entry.ppn].pinCount++;
+
+	entry.used = true;
+	if (writing) {
+	    entry.dirty = true;
+
+	    // keep a cached TLB entry from losing the new dirty bit
+	    invalidateTLB(entry.ppn);
+	}
+
+	VMKernel.memoryLock.release();
+
+	return entry.ppn*pageSize + Processor.offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Unpin the physical page returned by <tt>translate()</tt>.
+     *
+     * @param	paddr	the physical address.
+     */
+    protected void unpin(int paddr) {
+	VMKernel.memoryLock.acquire();
+
+	VMKernel.Frame frame = VMKernel.frames[paddr/pageSize];
+	Lib.assertTrue(frame.pinCount > 0);
+	frame.pinCount--;
+
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Return the number identifying this process in the inverted page table.
+     *
+     * @return	this process's ID, unique among all processes ever created.
+     */
+    int getProcessID() {
+	return processID;
+    }
+
+    /**
+     * Return the page table entry for the specified virtual page. The caller
+     * must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Return the swap slot holding a copy of the specified virtual page. The
+     * caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the swap slot, or -1 if the page has never been swapped.
+     */
+    int getSwapSlot(int vpn) {
+	return swapSlots[vpn];
+    }
+
+    /**
+     * Record the swap slot assigned to the specified virtual page. The
+     * caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	slot	the swap slot.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Mark the specified page clean, because <tt>VMKernel</tt> is about to
+     * write it to its swap slot. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    void clean(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	// a cached TLB entry would keep reporting the old dirty bit
+	if (entry.valid)
+	    invalidateTLB(entry.ppn);
+	entry.dirty = false;
+    }
+
+    /**
+     * Remove the specified virtual page from memory, so that the next access
+     * faults it back in. Called by <tt>VMKernel</tt> when it takes the page's
+     * physical page for another use, before writing the page to swap if it
+     * is dirty. The caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page to evict.
+     */
+    void evict(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	Lib.debug(dbgVM, "evicting page " + vpn + " from ppn " + entry.ppn);
+
+	invalidateTLB(entry.ppn);
+	entry.valid = false;
+    }
+
+    /**
+     * Bring the specified virtual page into memory, from swap, its COFF
+     * section, or by zero-filling it. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>. The new physical page is left unpinned.
+     *
+     * @param	vpn	the virtual page to bring in.
+     * @return	<tt>true</tt> if a physical page could be found for it.
+     */
+    private boolean pageIn(int vpn) {
+	SharedPage page = sharedPages[vpn];
+
+	VMKernel.Frame frame;
+	if (page != null)
+	    frame = VMKernel.allocateSharedFrame(page);
+	else
+	    frame = VMKernel.allocateFrame(this, vpn);
+
+	if (frame == null) {
+	    Lib.debug(dbgVM, "no physical page for vpn " + vpn);
+	    return false;
+	}
+
+	Lib.debug(dbgVM, "paging in vpn " + vpn + " to ppn " + frame.ppn);
+
+	// a swap copy stays valid until the page is dirtied again
+	CoffSection section = sections[vpn];
+	if (swapSlots[vpn] >= 0) {
+	    VMKernel.readSwap(swapSlots[vpn], frame.ppn);
+	}
+	else if (section != null) {
+	    section.loadPage(vpn - section.getFirstVPN(), frame.ppn);
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, frame.ppn*pageSize, (frame.ppn+1)*pageSize,
+			(byte) 0);
+	}
+
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = frame.ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+
+	frame.pinCount--;
+
+	return true;
+    }
+
+    /**
+     * Test whether the specified virtual page is a page of a writable section
+     * still shared with other processes.
+     */
+    private boolean isCopyOnWrite(int vpn) {
+	return sharedPages[vpn] != null && !sections[vpn].isReadOnly();
+    }
+
+    /**
+     * Give this process its own copy of a copy-on-write page, copied from
+     * the shared page if it is in memory, or loaded from the section if not.
+     * If no other process shares the page, this process just takes it. The
+     * caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if a physical page could be found for the copy.
+     */
+    private boolean copyOnWrite(int vpn) {
+	SharedPage page = sharedPages[vpn];
+
+	if (page.entry.valid && page.sharers.size() == 1) {
+	    int ppn = page.entry.ppn;
+	    invalidateTLB(ppn);
+
+	    sharedPages[vpn] = null;
+	    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false,
+						  true, true);
+	    VMKernel.takeSharedFrame(VMKernel.frames[ppn], this, vpn);
+
+	    return true;
+	}
+
+	// keep the original in memory until it has been copied
+	VMKernel.Frame original = null;
+	if (page.entry.valid) {
+	    original = VMKernel.frames[page.entry.ppn];
+	    original.pinCount++;
+	    invalidateTLB(original.ppn);
+	}
+
+	VMKernel.detachSharedPage(this, page);
+	sharedPages[vpn] = null;
+	pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+					      false, false);
+
+	Lib.debug(dbgVM, "copying shared page " + vpn);
+
+	boolean copied;
+	if (original != null) {
+	    VMKernel.Frame frame = VMKernel.allocateFrame(this, vpn);
+	    copied = (frame != null);
+
+	    if (copied) {
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, original.ppn*pageSize,
+				 memory, frame.ppn*pageSize, pageSize);
+
+		TranslationEntry entry = pageTable[vpn];
+		entry.ppn = frame.ppn;
+		entry.valid = true;
+
+		frame.pinCount--;
+	    }
+
+	    original.pinCount--;
+	}
+	else {
+	    copied = pageIn(vpn);
+	}
+
+	// the copy starts out dirty, since there is no swap copy of it
+	if (copied)
+	    pageTable[vpn].dirty = true;
+
+	return copied;
+    }
+
+    /**
+     * Handle a read-only exception on the address in the <tt>BadVAddr</tt>
+     * register, by giving this process its own copy of a copy-on-write page.
+     *
+     * @return	<tt>true</tt> if the TLB now maps the address writably.
+     */
+    private boolean handleReadOnly() {
+	Processor processor = Machine.processor();
+
+	int vaddr = processor.readRegister(Processor.regBadVAddr);
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || vpn >= numPages)
+	    return false;
+
+	VMKernel.memoryLock.acquire();
+
+	if (!isCopyOnWrite(vpn) || !copyOnWrite(vpn)) {
+	    VMKernel.memoryLock.release();
+	    return false;
+	}
+
+	refillTLB(vpn, pageTable[vpn].ppn);
+
+	VMKernel.memoryLock.release();
+
+	return true;
+    }
+
+    /**
+     * Handle a TLB miss on the address in the <tt>BadVAddr</tt> register,
+     * paging the page in if necessary. A page already in memory is found
+     * through <tt>VMKernel</tt>'s inverted page table, and referenced,
+     * without waiting for <tt>VMKernel.memoryLock</tt>: interrupts are
+     * disabled instead, which is safe only because the simulated machine has
+     * one processor.
+     *
+     * @return	<tt>true</tt> if the TLB now maps the address.
+     */
+    private boolean handleTLBMiss() {
+	Processor processor = Machine.processor();
+
+	int vaddr = processor.readRegister(Processor.regBadVAddr);
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || vpn >= numPages)
+	    return false;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// a page still being read in is in the table, but not yet valid
+	int ppn = VMKernel.lookup(this, vpn);
+	if (ppn != -1 && pageTable[vpn].valid) {
+	    VMKernel.reference(ppn);
+	    processor.recordPageHit();
+	    refillTLB(vpn, ppn);
+
+	    Machine.interrupt().restore(intStatus);
+	    return true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	VMKernel.memoryLock.acquire();
+
+	// another thread may have paged it in while this one waited
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid) {
+	    VMKernel.reference(entry.ppn);
+	    processor.recordPageHit();
+	}
+	else if (pageIn(vpn)) {
+	    processor.recordPageFault();
+	}
+	else {
+	    VMKernel.memoryLock.release();
+	    return false;
+	}
+
+	refillTLB(vpn, entry.ppn);
+
+	VMKernel.memoryLock.release();
+
+	return true;
+    }
+
+    /**
+     * Load a translation into the TLB. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>, or have interrupts disabled.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page it is in.
+     */
+    private void refillTLB(int vpn, int ppn) {
+	Processor processor = Machine.processor();
+
+	// prefer an invalid TLB entry, otherwise replace round-robin
+	int victim = -1;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+	if (victim == -1) {
+	    victim = nextVictim;
+	    nextVictim = (nextVictim+1) % processor.getTLBSize();
+	    syncTLBEntry(processor.readTLBEntry(victim));
+	}
+
+	TranslationEntry tlbEntry =
+	    new TranslationEntry(vpn, ppn, true, pageTable[vpn].readOnly,
+				 false, false);
+	tlbEntry.asid = asid;
+	processor.writeTLBEntry(victim, tlbEntry);
+    }
+
+    /**
+     * Release the address space ID this process was using, because
+     * <tt>VMKernel</tt> has given it to another process. Invalidates every
+     * TLB entry tagged with it. Called with interrupts disabled.
+     */
+    void loseAddressSpace() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.asid == asid) {
+		syncTLBEntry(tlbEntry);
+
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	asid = 0;
+    }
+
+    /**
+     * Copy the used and dirty bits of every valid TLB entry into the page
+     * table of the process owning it. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>, or have interrupts disabled.
+     */
+    static void syncTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    syncTLBEntry(processor.readTLBEntry(i));
+    }
+
+    private static void syncTLBEntry(TranslationEntry tlbEntry) {
+	if (!tlbEntry.valid)
+	    return;
+
+	// every TLB entry maps a page in the core map
+	TranslationEntry entry = VMKernel.frames[tlbEntry.ppn].getEntry();
+	if (entry != null && entry.valid && entry.vpn == tlbEntry.vpn &&
+	    entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    /**
+     * Invalidate any TLB entry that maps the specified physical page, first
+     * copying its used and dirty bits into the page table. The caller must
+     * hold <tt>VMKernel.memoryLock</tt>, or have interrupts disabled.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void invalidateTLB(int ppn) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.ppn == ppn) {
+		syncTLBEntry(tlbEntry);
+
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,12 +634,39 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss())
+		super.handleException(cause);
+	    break;
+	case Processor.exceptionReadOnly:
+	    if (!handleReadOnly())
+		super.handleException(cause);
+	    break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
 	
+    private final int processID = nextProcessID++;
+    private static int nextProcessID = 0;
+    /** This process's address space ID, or 0 if it has none. */
+    private int asid = 0;
+
+    /** The name of the executable this process is running. */
+    private String executableName;
+    /** The section backing each virtual page, or <tt>null</tt> if none. */
+    private CoffSection[] sections;
+    /**
+     * The shared page each virtual page is mapped to, or <tt>null</tt> if the
+     * page is private to this process.
+     */
+    private SharedPage[] sharedPages;
+    /** The swap slot holding each virtual page, or -1 if none. */
+    private int[] swapSlots;
+    /** The next TLB entry to replace when none is invalid. */
+    private static int nextVictim = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';